@@ -0,0 +1,52 @@
+package org.exoplatform.extension.exchange.listener;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+
+import org.apache.commons.chain.Context;
+import org.exoplatform.calendar.service.Utils;
+import org.exoplatform.extension.exchange.service.IntegrationService;
+import org.exoplatform.services.command.action.Action;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * 
+ * Resets the calendar timezone kept by the user integration service when the
+ * calendar setting of the user is modified.
+ * 
+ * @author Boubaker Khanfir
+ * 
+ */
+public class CalendarSettingUpdateAction implements Action {
+
+  private final static Log LOG = ExoLogger.getLogger(CalendarSettingUpdateAction.class);
+
+  public boolean execute(Context context) throws Exception {
+    Object object = context.get("currentItem");
+    Node node = null;
+    if (object instanceof Node) {
+      node = (Node) object;
+    } else if (object instanceof Property) {
+      Property property = (Property) object;
+      if (!property.getName().equals(Utils.EXO_TIMEZONE)) {
+        return false;
+      }
+      node = property.getParent();
+    }
+    if (node != null && node.isNodeType(Utils.EXO_CALENDAR_SETTING)) {
+      try {
+        // Setting node path: {user}/ApplicationData/CalendarApplication/calendarSetting
+        String userId = node.getNode("../../..").getName();
+        IntegrationService integrationService = IntegrationService.getInstance(userId);
+        if (integrationService != null) {
+          integrationService.invalidateUserCalendarTimeZone();
+        }
+      } catch (Exception e) {
+        LOG.error("Error while resetting calendar timezone of user from setting node: " + node.getPath(), e);
+      }
+    }
+    return false;
+  }
+
+}
@@ -3,16 +3,26 @@ package org.exoplatform.extension.exchange.listener;
 import java.net.URI;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import microsoft.exchange.webservices.data.EventType;
 import microsoft.exchange.webservices.data.ExchangeCredentials;
@@ -32,9 +42,20 @@ import org.exoplatform.calendar.service.CalendarEvent;
 import org.exoplatform.calendar.service.CalendarService;
 import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.extension.exchange.service.CorrespondenceService;
+import org.exoplatform.extension.exchange.service.ExchangeServicePool;
 import org.exoplatform.extension.exchange.service.ExchangeStorageService;
 import org.exoplatform.extension.exchange.service.ExoStorageService;
 import org.exoplatform.extension.exchange.service.IntegrationService;
+import org.exoplatform.extension.exchange.service.OutboxService;
+import org.exoplatform.extension.exchange.service.SynchronizationContext;
+import org.exoplatform.extension.exchange.service.SynchronizationJob;
+import org.exoplatform.extension.exchange.service.SynchronizationStateService;
+import org.exoplatform.extension.exchange.service.util.CalendarConverterService;
+import org.exoplatform.extension.exchange.service.util.ParticipantCache;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.organization.OrganizationService;
@@ -55,6 +76,9 @@ import org.picocontainer.Startable;
  * 
  * 
  */
+@Managed
+@ManagedDescription("Exchange integration service")
+@NameTemplate({ @Property(key = "service", value = "exchange"), @Property(key = "view", value = "integration") })
 public class IntegrationListener implements Startable {
 
   private static final Log LOG = ExoLogger.getLogger(IntegrationListener.class);
@@ -64,6 +88,23 @@ public class IntegrationListener implements Startable {
   private static final String EXCHANGE_LISTENER_SCHEDULER_DELAY_NAME = "exchange.scheduler.delay";
   private static final String EXCHANGE_SYNCHRONIZE_ALL = "exchange.synchronize.all.folders";
   private static final String EXCHANGE_DELETE_CALENDAR_ON_UNSYNC = "exchange.delete.calendar.on.unsync";
+  private static final String EXCHANGE_IMPERSONATION_USERNAME = "exchange.impersonation.username";
+  private static final String EXCHANGE_IMPERSONATION_PASSWORD = "exchange.impersonation.password";
+  private static final String EXCHANGE_IMPERSONATION_POOL_SIZE = "exchange.impersonation.pool.size";
+  private static final String EXCHANGE_IMPERSONATION_POOL_TIMEOUT = "exchange.impersonation.pool.timeout";
+  private static final String EXCHANGE_FOLDER_SYNCHRONIZATION_THREADS = "exchange.folder.synchronization.threads";
+  private static final String EXCHANGE_FOLDER_SYNCHRONIZATION_EXECUTOR_SIZE = "exchange.folder.synchronization.executor.size";
+  private static final String EXCHANGE_SYNCHRONIZATION_JOB_EXECUTOR_SIZE = "exchange.synchronization.job.executor.size";
+  private static final String EXCHANGE_PARTICIPANT_CACHE_SIZE = "exchange.participant.cache.size";
+  private static final String EXCHANGE_PARTICIPANT_CACHE_TTL = "exchange.participant.cache.ttl";
+  private static final String EXCHANGE_ATTACHMENT_SPOOL_THRESHOLD = "exchange.attachment.spool.threshold";
+
+  // Delay while finished synchronization jobs can be read from REST service
+  private static final long SYNCHRONIZATION_JOB_RETENTION = 60 * 60 * 1000L;
+
+  // Delay before queued jobs try again to start when the synchronization of
+  // the user is in progress
+  private static final long SYNCHRONIZATION_JOB_WAIT_DELAY = 500L;
 
   public static short diffTimeZone = 0;
 
@@ -71,11 +112,22 @@ public class IntegrationListener implements Startable {
   private static int schedulerDelayInSeconds = 0;
 
   private final ScheduledExecutorService scheduledExecutor = Executors.newScheduledThreadPool(10);
+  private final ExecutorService folderSynchronizationExecutor;
+  private final ExecutorService synchronizationJobExecutor;
+  // Lists Exchange calendar folders in background when the last listing
+  // served by the REST service expired
+  private final ExecutorService foldersRefreshExecutor = Executors.newSingleThreadExecutor();
   private final Map<String, ScheduledFuture<?>> futures = new HashMap<String, ScheduledFuture<?>>();
+  private final Map<String, ExchangeIntegrationTask> tasks = new ConcurrentHashMap<String, ExchangeIntegrationTask>();
+  private final Map<String, SynchronizationJob> synchronizationJobs = new ConcurrentHashMap<String, SynchronizationJob>();
+  // Users having a folders listing in progress
+  private final Map<String, Boolean> foldersRefreshingUsers = new ConcurrentHashMap<String, Boolean>();
 
   private final ExoStorageService exoStorageService;
   private final ExchangeStorageService exchangeStorageService;
   private final CorrespondenceService correspondenceService;
+  private final SynchronizationStateService synchronizationStateService;
+  private final OutboxService outboxService;
   private final OrganizationService organizationService;
   private final CalendarService calendarService;
   private final IdentityRegistry identityRegistry;
@@ -86,11 +138,19 @@ public class IntegrationListener implements Startable {
   private boolean synchronizeAllExchangeFolders = false;
   private boolean deleteExoCalendarOnUnsync = false;
 
+  private ExchangeServicePool impersonationServicePool = null;
+
+  // Maximum number of folders synchronized in parallel for one user
+  private int folderSynchronizationThreads = 3;
+
   public IntegrationListener(OrganizationService organizationService, CalendarService calendarService, ExoStorageService exoStorageService, ExchangeStorageService exchangeStorageService,
-      CorrespondenceService correspondenceService, IdentityRegistry identityRegistry, InitParams params) {
+      CorrespondenceService correspondenceService, SynchronizationStateService synchronizationStateService, OutboxService outboxService, IdentityRegistry identityRegistry,
+      InitParams params) {
     this.exoStorageService = exoStorageService;
     this.exchangeStorageService = exchangeStorageService;
     this.correspondenceService = correspondenceService;
+    this.synchronizationStateService = synchronizationStateService;
+    this.outboxService = outboxService;
     this.identityRegistry = identityRegistry;
     this.organizationService = organizationService;
     this.calendarService = calendarService;
@@ -126,6 +186,87 @@ public class IntegrationListener implements Startable {
       }
     }
 
+    if (params.containsKey(EXCHANGE_FOLDER_SYNCHRONIZATION_THREADS)) {
+      String folderSynchronizationThreadsString = params.getValueParam(EXCHANGE_FOLDER_SYNCHRONIZATION_THREADS).getValue();
+      folderSynchronizationThreads = Integer.valueOf(folderSynchronizationThreadsString);
+    }
+    if (folderSynchronizationThreads < 1) {
+      LOG.warn("Echange Synchronization Service: init-param " + EXCHANGE_FOLDER_SYNCHRONIZATION_THREADS + "is not correctly set. Use default: 1.");
+      folderSynchronizationThreads = 1;
+    }
+    // Threads shared by folder synchronization workers of all users
+    int folderSynchronizationExecutorSize = 10;
+    if (params.containsKey(EXCHANGE_FOLDER_SYNCHRONIZATION_EXECUTOR_SIZE)) {
+      folderSynchronizationExecutorSize = Integer.valueOf(params.getValueParam(EXCHANGE_FOLDER_SYNCHRONIZATION_EXECUTOR_SIZE).getValue());
+    }
+    if (folderSynchronizationExecutorSize < 1) {
+      LOG.warn("Echange Synchronization Service: init-param " + EXCHANGE_FOLDER_SYNCHRONIZATION_EXECUTOR_SIZE + "is not correctly set. Use default: 10.");
+      folderSynchronizationExecutorSize = 10;
+    }
+    folderSynchronizationExecutor = Executors.newFixedThreadPool(folderSynchronizationExecutorSize);
+    // Threads running the synchronization jobs of all users, the jobs of a
+    // user are run one after the other
+    int synchronizationJobExecutorSize = 5;
+    if (params.containsKey(EXCHANGE_SYNCHRONIZATION_JOB_EXECUTOR_SIZE)) {
+      synchronizationJobExecutorSize = Integer.valueOf(params.getValueParam(EXCHANGE_SYNCHRONIZATION_JOB_EXECUTOR_SIZE).getValue());
+    }
+    if (synchronizationJobExecutorSize < 1) {
+      LOG.warn("Echange Synchronization Service: init-param " + EXCHANGE_SYNCHRONIZATION_JOB_EXECUTOR_SIZE + "is not correctly set. Use default: 5.");
+      synchronizationJobExecutorSize = 5;
+    }
+    synchronizationJobExecutor = Executors.newFixedThreadPool(synchronizationJobExecutorSize);
+    int participantCacheSize = 5000;
+    if (params.containsKey(EXCHANGE_PARTICIPANT_CACHE_SIZE)) {
+      participantCacheSize = Integer.valueOf(params.getValueParam(EXCHANGE_PARTICIPANT_CACHE_SIZE).getValue());
+    }
+    int participantCacheTTLInSeconds = 1800;
+    if (params.containsKey(EXCHANGE_PARTICIPANT_CACHE_TTL)) {
+      participantCacheTTLInSeconds = Integer.valueOf(params.getValueParam(EXCHANGE_PARTICIPANT_CACHE_TTL).getValue());
+    }
+    if (participantCacheSize < 1 || participantCacheTTLInSeconds < 1) {
+      LOG.warn("Echange Synchronization Service: init-params " + EXCHANGE_PARTICIPANT_CACHE_SIZE + " and " + EXCHANGE_PARTICIPANT_CACHE_TTL
+          + " are not correctly set. Use defaults: 5000 and 1800.");
+      participantCacheSize = 5000;
+      participantCacheTTLInSeconds = 1800;
+    }
+    ParticipantCache.configure(participantCacheSize, participantCacheTTLInSeconds * 1000L);
+
+    if (params.containsKey(EXCHANGE_ATTACHMENT_SPOOL_THRESHOLD)) {
+      long attachmentSpoolThreshold = Long.valueOf(params.getValueParam(EXCHANGE_ATTACHMENT_SPOOL_THRESHOLD).getValue());
+      if (attachmentSpoolThreshold < 0) {
+        LOG.warn("Echange Synchronization Service: init-param " + EXCHANGE_ATTACHMENT_SPOOL_THRESHOLD + "is not correctly set. Use default: 1048576.");
+      } else {
+        CalendarConverterService.setAttachmentSpoolThreshold(attachmentSpoolThreshold);
+      }
+    }
+
+    if (params.containsKey(EXCHANGE_IMPERSONATION_USERNAME) && !params.getValueParam(EXCHANGE_IMPERSONATION_USERNAME).getValue().isEmpty()) {
+      String impersonationUsername = params.getValueParam(EXCHANGE_IMPERSONATION_USERNAME).getValue();
+      String impersonationPassword = params.containsKey(EXCHANGE_IMPERSONATION_PASSWORD) ? params.getValueParam(EXCHANGE_IMPERSONATION_PASSWORD).getValue() : null;
+      int impersonationPoolSize = 5;
+      if (params.containsKey(EXCHANGE_IMPERSONATION_POOL_SIZE)) {
+        impersonationPoolSize = Integer.valueOf(params.getValueParam(EXCHANGE_IMPERSONATION_POOL_SIZE).getValue());
+      }
+      int impersonationPoolTimeoutInSeconds = 30;
+      if (params.containsKey(EXCHANGE_IMPERSONATION_POOL_TIMEOUT)) {
+        impersonationPoolTimeoutInSeconds = Integer.valueOf(params.getValueParam(EXCHANGE_IMPERSONATION_POOL_TIMEOUT).getValue());
+      }
+      if (impersonationPoolTimeoutInSeconds < 1) {
+        LOG.warn("Echange Synchronization Service: init-param " + EXCHANGE_IMPERSONATION_POOL_TIMEOUT + "is not correctly set. Use default: 30.");
+        impersonationPoolTimeoutInSeconds = 30;
+      }
+      if (exchangeServerURL == null || exchangeDomain == null) {
+        LOG.warn("Echange Synchronization Service: impersonation can't be used without " + EXCHANGE_SERVER_URL_PARAM_NAME + " and " + EXCHANGE_DOMAIN_PARAM_NAME + " init-params.");
+      } else {
+        try {
+          impersonationServicePool = new ExchangeServicePool(impersonationUsername, impersonationPassword, exchangeDomain, exchangeServerURL, impersonationPoolSize,
+              impersonationPoolTimeoutInSeconds * 1000L);
+        } catch (Exception e) {
+          LOG.error("Echange Synchronization Service: error while initializing impersonation service pool, users credentials will be used.", e);
+        }
+      }
+    }
+
     // Exchange system dates are saved using UTC timezone independing of User
     // Calendar timezone, so we have to get the diff with eXo Server TimeZone
     // and Exchange to make search queries
@@ -140,6 +281,39 @@ public class IntegrationListener implements Startable {
   @Override
   public void stop() {
     scheduledExecutor.shutdownNow();
+    synchronizationJobExecutor.shutdownNow();
+    folderSynchronizationExecutor.shutdownNow();
+    foldersRefreshExecutor.shutdownNow();
+  }
+
+  @Managed
+  @ManagedDescription("Number of participants resolved to eXo users from cache")
+  public long getParticipantCacheHits() {
+    return ParticipantCache.getHits();
+  }
+
+  @Managed
+  @ManagedDescription("Number of participants resolved from cache as not being eXo users")
+  public long getParticipantCacheNegativeHits() {
+    return ParticipantCache.getNegativeHits();
+  }
+
+  @Managed
+  @ManagedDescription("Number of participants resolved through organization service")
+  public long getParticipantCacheMisses() {
+    return ParticipantCache.getMisses();
+  }
+
+  @Managed
+  @ManagedDescription("Number of participants in cache")
+  public int getParticipantCacheSize() {
+    return ParticipantCache.getSize();
+  }
+
+  @Managed
+  @ManagedDescription("Clear participants cache")
+  public void clearParticipantCache() {
+    ParticipantCache.clear();
   }
 
   /**
@@ -149,6 +323,12 @@ public class IntegrationListener implements Startable {
    * @param password
    */
   public void userLoggedIn(final String username, final String password) throws Exception {
+    if (impersonationServicePool != null) {
+      // User password isn't needed, the service account impersonates the user
+      String exchangeStoredUsername = IntegrationService.getUserArrtibute(organizationService, username, IntegrationService.USER_EXCHANGE_USERNAME_ATTRIBUTE);
+      userLoggedIn(username, (exchangeStoredUsername == null || exchangeStoredUsername.isEmpty()) ? username : exchangeStoredUsername, null, exchangeDomain, exchangeServerURL);
+      return;
+    }
     String exchangeStoredUsername = IntegrationService.getUserArrtibute(organizationService, username, IntegrationService.USER_EXCHANGE_USERNAME_ATTRIBUTE);
     if (exchangeStoredUsername != null && !exchangeStoredUsername.isEmpty()) {
       String exchangeStoredServerName = IntegrationService.getUserArrtibute(organizationService, username, IntegrationService.USER_EXCHANGE_SERVER_URL_ATTRIBUTE);
@@ -186,11 +366,16 @@ public class IntegrationListener implements Startable {
       closeTaskIfExists(username);
 
       // Scheduled task: listen the changes made on MS Exchange Calendar
-      Thread schedulerCommand = new ExchangeIntegrationTask(identity, exchangeUsername, password, exchangeDomain, exchangeServerURL);
+      ExchangeIntegrationTask schedulerCommand = new ExchangeIntegrationTask(identity, exchangeUsername, password, exchangeDomain, exchangeServerURL);
       ScheduledFuture<?> future = scheduledExecutor.scheduleWithFixedDelay(schedulerCommand, 10, schedulerDelayInSeconds, TimeUnit.SECONDS);
 
       // Add future task to the map to destroy thread when the user logout
       futures.put(username, future);
+      tasks.put(username, schedulerCommand);
+      correspondenceService.registerSynchronizedCalendars(username);
+
+      // Push eXo modifications not pushed before logout
+      outboxService.resume(username);
 
       LOG.info("User '" + username + "' logged in, exchange synchronization task started.");
     } catch (Exception e) {
@@ -210,7 +395,93 @@ public class IntegrationListener implements Startable {
     closeTaskIfExists(username);
   }
 
+  /**
+   * 
+   * Runs a full synchronization of Exchange folders as soon as the current
+   * synchronization of the user finishes. Jobs of the same user are queued and
+   * run one after the other, scheduled synchronizations of the user are
+   * skipped until they finish.
+   * 
+   * @param username
+   * @param folderIds
+   *          Exchange folders ids
+   * @return the job, null if the user has no Exchange synchronization task
+   */
+  public SynchronizationJob submitSynchronizationJob(String username, List<String> folderIds) {
+    ExchangeIntegrationTask task = tasks.get(username);
+    if (task == null) {
+      return null;
+    }
+    purgeSynchronizationJobs();
+
+    SynchronizationJob job = new SynchronizationJob(username, folderIds);
+    synchronizationJobs.put(job.getId(), job);
+    task.enqueueSynchronizationJob(job);
+    return job;
+  }
+
+  /**
+   * 
+   * @param username
+   * @param jobId
+   * @return the synchronization job of the user, null if not found
+   */
+  public SynchronizationJob getSynchronizationJob(String username, String jobId) {
+    SynchronizationJob job = synchronizationJobs.get(jobId);
+    return (job != null && job.getUsername().equals(username)) ? job : null;
+  }
+
+  /**
+   * 
+   * Lists Exchange calendar folders of the user in background. Nothing is done
+   * if a listing of the user is already in progress.
+   * 
+   * @param username
+   * @param service
+   *          Exchange integration service of the user
+   */
+  public void submitFoldersRefresh(final String username, final IntegrationService service) {
+    if (foldersRefreshingUsers.put(username, Boolean.TRUE) != null) {
+      return;
+    }
+    try {
+      foldersRefreshExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (!service.refreshExchangeCalendarFolders() && LOG.isDebugEnabled()) {
+              LOG.debug("No Exchange service available to refresh list of calendars for user: '" + username + "', the last one is kept.");
+            }
+          } catch (Exception e) {
+            LOG.warn("Exchange Inegration Service: Unable to refresh list of calendars for user: '" + username + "'", e);
+          } finally {
+            foldersRefreshingUsers.remove(username);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The service is stopping, the last listing is kept
+      foldersRefreshingUsers.remove(username);
+    }
+  }
+
+  private void purgeSynchronizationJobs() {
+    Iterator<SynchronizationJob> iterator = synchronizationJobs.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().isFinishedSince(SYNCHRONIZATION_JOB_RETENTION)) {
+        iterator.remove();
+      }
+    }
+  }
+
   private void closeTaskIfExists(String username) {
+    ExchangeIntegrationTask task = tasks.remove(username);
+    if (task != null) {
+      // Folders requested by the user stay synchronized, their import is
+      // resumed when the user logs in again
+      task.stopSynchronizationJobs();
+    }
+    correspondenceService.unregisterSynchronizedCalendars(username);
     ScheduledFuture<?> future = futures.remove(username);
     if (future != null) {
       future.cancel(true);
@@ -254,24 +525,39 @@ public class IntegrationListener implements Startable {
    */
   protected class ExchangeIntegrationTask extends Thread {
     private IntegrationService integrationService;
+    // Folders and subscription are modified only by the thread that started
+    // the synchronization of the user, scheduled task or job
     private List<FolderId> calendarFolderIds = new ArrayList<FolderId>();
-    private PullSubscription subscription = null;
+    private volatile PullSubscription subscription = null;
     private String username;
     private ConversationState state;
     private boolean firstSynchronization;
+    // Queued jobs requested by the user
+    private final LinkedList<SynchronizationJob> pendingJobs = new LinkedList<SynchronizationJob>();
+    // True while queued jobs are waiting to start or running
+    private boolean jobsRunnerScheduled = false;
+    // True once the user logged out
+    private boolean closed = false;
+    private SynchronizationJob runningJob;
 
     public ExchangeIntegrationTask(Identity identity, String exchangeUsername, String exchangePassword, String exchangeDomain, String exchangeServerURL) throws Exception {
       super("ExchangeIntegrationTask-" + (threadIndex++));
       this.username = identity.getUserId();
       this.firstSynchronization = true;
 
-      ExchangeService service = new ExchangeService(ExchangeVersion.Exchange2010_SP2, TimeZone.getDefault());
-      service.setTimeout(20000);
-      ExchangeCredentials credentials = new WebCredentials(exchangeUsername + "@" + exchangeDomain, exchangePassword);
-      service.setCredentials(credentials);
-      service.setUrl(new URI(exchangeServerURL));
+      if (impersonationServicePool == null) {
+        ExchangeService service = new ExchangeService(ExchangeVersion.Exchange2010_SP2, TimeZone.getDefault());
+        service.setTimeout(20000);
+        ExchangeCredentials credentials = new WebCredentials(exchangeUsername + "@" + exchangeDomain, exchangePassword);
+        service.setCredentials(credentials);
+        service.setUrl(new URI(exchangeServerURL));
 
-      integrationService = new IntegrationService(organizationService, calendarService, exoStorageService, exchangeStorageService, correspondenceService, service, username);
+        integrationService = new IntegrationService(organizationService, calendarService, exoStorageService, exchangeStorageService, correspondenceService, synchronizationStateService, outboxService,
+            service, username);
+      } else {
+        integrationService = new IntegrationService(organizationService, calendarService, exoStorageService, exchangeStorageService, correspondenceService, synchronizationStateService,
+            outboxService, impersonationServicePool, exchangeUsername, username);
+      }
 
       // Set current identity visible in this Thread
       state = new ConversationState(identity);
@@ -279,27 +565,43 @@ public class IntegrationListener implements Startable {
 
       // First call to the service, this may fail because of wrong
       // credentials
-      if (synchronizeAllExchangeFolders) {
-        calendarFolderIds = exchangeStorageService.getAllExchangeCalendars(service);
-      } else {
-        // Test connection
-        Folder folder = integrationService.getExchangeCalendar(FolderId.getFolderIdFromWellKnownFolderName(WellKnownFolderName.Calendar));
-        if (folder != null) {
-          integrationService.setSynchronizationStarted();
-          calendarFolderIds = integrationService.getSynchronizedExchangeCalendars();
-          integrationService.setSynchronizationStopped();
+      integrationService.setSynchronizationStarted();
+      try {
+        // Load the synchronized calendars of the user, checked by JCR actions
+        List<FolderId> synchronizedFolderIds = integrationService.getSynchronizedExchangeCalendars();
+        if (synchronizeAllExchangeFolders) {
+          calendarFolderIds = integrationService.getAllExchangeCalendars();
         } else {
-          throw new RuntimeException("Error while authenticating user '" + username + "' to exchange, please make sure you are connected to the correct URL with correct credentials.");
+          // Test connection
+          Folder folder = integrationService.getExchangeCalendar(FolderId.getFolderIdFromWellKnownFolderName(WellKnownFolderName.Calendar));
+          if (folder != null) {
+            calendarFolderIds = synchronizedFolderIds;
+          } else {
+            throw new RuntimeException("Error while authenticating user '" + username + "' to exchange, please make sure you are connected to the correct URL with correct credentials.");
+          }
         }
+      } finally {
+        integrationService.setSynchronizationStopped();
       }
     }
 
     @Override
     public void run() {
+      if (hasPendingJobs()) {
+        LOG.info("Synchronization job requested by user '" + username + "' is in progress, scheduled synchronization is skipped.");
+        return;
+      }
       waitOtherTasks();
       try {
-        integrationService.setSynchronizationStarted();
-
+        if (!integrationService.trySetSynchronizationStarted()) {
+          LOG.info("Exchange integration is still in use, scheduled synchronization is skipped for user:'" + username + "'.");
+          return;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      try {
         ConversationState.setCurrent(state);
 
         // Verify Exchange folders state with Exo Calendars state
@@ -307,15 +609,15 @@ public class IntegrationListener implements Startable {
         if (calendarFolderIds.isEmpty()) {
           return;
         }
-        if (updatedExoEventIDs == null) {
-          updatedExoEventIDs = new ArrayList<String>();
-        }
+        SynchronizationContext context = new SynchronizationContext();
+        context.addUpdatedEventIDs(updatedExoEventIDs);
+        context.setTimeZone(integrationService.getUserExoCalenarTimeZoneSetting());
         Date lastSyncDate = integrationService.getUserLastCheckDate();
         // This is used once, when user login
         if (firstSynchronization) {
           LOG.info("run first synchronization for user: " + username);
           // Verify modifications made on folders
-          synchronizeByModificationDate(lastSyncDate, updatedExoEventIDs);
+          synchronizeByModificationDate(lastSyncDate, context);
           this.firstSynchronization = false;
           // Begin catching events from Exchange after first synchronization
           newSubscription();
@@ -330,11 +632,15 @@ public class IntegrationListener implements Startable {
             newSubscription();
             events = subscription.getEvents();
           }
+          if (events.getFolderEvents() != null && events.getFolderEvents().iterator().hasNext()) {
+            // Folders listed for the REST service have to be listed again
+            integrationService.invalidateExchangeCalendarFolders();
+          }
           if (synchronizeAllExchangeFolders) {
-            synchronizeExchangeFolders(events, updatedExoEventIDs);
+            synchronizeExchangeFolders(events, context);
           }
-          synchronizeExchangeApointments(events, updatedExoEventIDs);
-          synchronizeByModificationDate(lastSyncDate, updatedExoEventIDs);
+          synchronizeExchangeApointments(events, context);
+          synchronizeByModificationDate(lastSyncDate, context);
           // Renew subcription to manage new events
           newSubscription();
         }
@@ -351,6 +657,307 @@ public class IntegrationListener implements Startable {
       }
     }
 
+    private void enqueueSynchronizationJob(SynchronizationJob job) {
+      synchronized (pendingJobs) {
+        if (closed) {
+          // The user logged out in the meantime
+          job.stop();
+          job.setCompleted();
+          return;
+        }
+        pendingJobs.add(job);
+        if (jobsRunnerScheduled) {
+          return;
+        }
+        jobsRunnerScheduled = true;
+      }
+      executeJobsRunner();
+    }
+
+    /**
+     * Stops the running job and the queued ones when the user logs out. The
+     * folders of the jobs stay synchronized.
+     */
+    private void stopSynchronizationJobs() {
+      List<SynchronizationJob> stoppedJobs = null;
+      synchronized (pendingJobs) {
+        closed = true;
+        stoppedJobs = new ArrayList<SynchronizationJob>(pendingJobs);
+        pendingJobs.clear();
+        if (runningJob != null) {
+          runningJob.stop();
+        }
+      }
+      for (SynchronizationJob job : stoppedJobs) {
+        job.stop();
+        job.setCompleted();
+      }
+    }
+
+    private boolean hasPendingJobs() {
+      synchronized (pendingJobs) {
+        return jobsRunnerScheduled;
+      }
+    }
+
+    private SynchronizationJob nextPendingJob() {
+      synchronized (pendingJobs) {
+        SynchronizationJob job = pendingJobs.poll();
+        if (job == null) {
+          jobsRunnerScheduled = false;
+        }
+        runningJob = job;
+        return job;
+      }
+    }
+
+    private void executeJobsRunner() {
+      try {
+        synchronizationJobExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            runPendingJobs();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        failPendingJobs("Synchronization jobs executor is stopped");
+      }
+    }
+
+    private void failPendingJobs(String error) {
+      SynchronizationJob job = nextPendingJob();
+      while (job != null) {
+        job.setFailed(error);
+        job = nextPendingJob();
+      }
+    }
+
+    /**
+     * Runs the queued jobs with one synchronization lease. When the
+     * synchronization of the user is in progress, the runner is scheduled
+     * again instead of waiting in a thread.
+     */
+    private void runPendingJobs() {
+      synchronized (pendingJobs) {
+        if (pendingJobs.isEmpty()) {
+          // Jobs stopped when the user logged out
+          jobsRunnerScheduled = false;
+          return;
+        }
+      }
+      try {
+        if (!integrationService.trySetSynchronizationStarted()) {
+          try {
+            scheduledExecutor.schedule(new Runnable() {
+              @Override
+              public void run() {
+                executeJobsRunner();
+              }
+            }, SYNCHRONIZATION_JOB_WAIT_DELAY, TimeUnit.MILLISECONDS);
+          } catch (RejectedExecutionException e) {
+            failPendingJobs("Synchronization scheduler is stopped");
+          }
+          return;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failPendingJobs("Interrupted while waiting for synchronization");
+        return;
+      }
+      try {
+        ConversationState.setCurrent(state);
+        SynchronizationJob job = nextPendingJob();
+        while (job != null) {
+          runSynchronizationJob(job);
+          job = nextPendingJob();
+        }
+      } finally {
+        integrationService.setSynchronizationStopped();
+      }
+    }
+
+    private void runSynchronizationJob(SynchronizationJob job) {
+      try {
+        List<FolderId> folderIds = new ArrayList<FolderId>();
+        for (String folderIdString : job.getFolderIds()) {
+          folderIds.add(FolderId.getFolderIdFromString(folderIdString));
+        }
+        if (job.isStopRequested()) {
+          // Cancelled or stopped while queued
+          if (job.isCancelRequested()) {
+            unsynchronizeFolders(folderIds);
+          }
+          job.setCompleted();
+          return;
+        }
+        job.setStarted();
+        LOG.info("Run synchronization job '" + job.getId() + "' for user: " + username);
+
+        for (FolderId folderId : folderIds) {
+          job.addTotalItems(integrationService.getFullSynchronizationItemsCount(folderId));
+        }
+
+        List<FolderId> synchronizedFolderIds = importFolders(folderIds, job);
+        for (FolderId folderId : synchronizedFolderIds) {
+          if (!calendarFolderIds.contains(folderId)) {
+            calendarFolderIds.add(folderId);
+          }
+        }
+
+        if (job.isCancelRequested()) {
+          unsynchronizeFolders(folderIds);
+        } else if (job.isStopRequested()) {
+          // The user logged out, partially imported calendars are imported
+          // again by the first synchronization of the next login
+          for (FolderId folderId : folderIds) {
+            if (!calendarFolderIds.contains(folderId)) {
+              exoStorageService.deleteCalendar(username, folderId.getUniqueId());
+              integrationService.addFolderToSynchronization(folderId.getUniqueId());
+            }
+          }
+        }
+        if (subscription != null && !synchronizedFolderIds.isEmpty() && !job.isStopRequested()) {
+          // Listen to the changes of imported folders
+          newSubscription();
+        }
+        job.setCompleted();
+        LOG.info("Synchronization job '" + job.getId() + "' " + job.getStatus().name().toLowerCase() + " for user '" + username + "', items: " + job.getProcessedItems());
+      } catch (Exception e) {
+        LOG.error("Error while running synchronization job '" + job.getId() + "' for user: " + username, e);
+        job.setFailed(e.getMessage());
+      }
+    }
+
+    /**
+     * Folders of a cancelled job that weren't imported aren't synchronized
+     * anymore.
+     */
+    private void unsynchronizeFolders(List<FolderId> folderIds) throws Exception {
+      for (FolderId folderId : folderIds) {
+        if (!calendarFolderIds.contains(folderId)) {
+          integrationService.deleteFolderFromSynchronization(folderId.getUniqueId());
+          exoStorageService.deleteCalendar(username, folderId.getUniqueId());
+        }
+      }
+    }
+
+    private List<FolderId> importFolders(final List<FolderId> folderIds, final SynchronizationJob job) throws Exception {
+      final List<FolderId> importedFolderIds = Collections.synchronizedList(new ArrayList<FolderId>());
+      // Folders are fetched in parallel, as in scheduled synchronizations
+      synchronizeFolders(folderIds.size(), new FolderSynchronization() {
+        @Override
+        public void synchronize(int folderIndex) throws Exception {
+          if (job.isStopRequested()) {
+            return;
+          }
+          FolderId folderId = folderIds.get(folderIndex);
+          if (importFolder(folderId, job)) {
+            importedFolderIds.add(folderId);
+          }
+        }
+      });
+      return importedFolderIds;
+    }
+
+    /**
+     * @return true if the folder was fully imported
+     */
+    private boolean importFolder(FolderId folderId, SynchronizationJob job) throws Exception {
+      if (!calendarFolderIds.contains(folderId)) {
+        // Delete eXo calendar and recreate it
+        exoStorageService.deleteCalendar(username, folderId.getUniqueId());
+      }
+      integrationService.synchronizeFullCalendar(folderId, job);
+      return !job.isStopRequested();
+    }
+
+    /**
+     * Synchronizes 'count' folders with up to 'folderSynchronizationThreads'
+     * workers. The current thread is one of the workers and uses the service
+     * of the synchronization, the other workers lease their own Exchange
+     * service when they start and release it when they finish.
+     */
+    private void synchronizeFolders(final int count, final FolderSynchronization folderSynchronization) throws Exception {
+      final AtomicInteger nextFolderIndex = new AtomicInteger(0);
+      int nbWorkers = Math.min(folderSynchronizationThreads, count);
+      List<Future<?>> workerFutures = new ArrayList<Future<?>>();
+      for (int i = 1; i < nbWorkers; i++) {
+        workerFutures.add(folderSynchronizationExecutor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            if (nextFolderIndex.get() >= count) {
+              return null;
+            }
+            ExchangeService workerService = integrationService.acquireWorkerService();
+            if (workerService == null) {
+              // No idle service in impersonation pool, other workers will
+              // synchronize the folders
+              return null;
+            }
+            ConversationState.setCurrent(state);
+            integrationService.setWorkerService(workerService);
+            try {
+              synchronizeFolders(nextFolderIndex, count, folderSynchronization);
+            } finally {
+              integrationService.setWorkerService(null);
+              integrationService.releaseWorkerService(workerService);
+              ConversationState.setCurrent(null);
+            }
+            return null;
+          }
+        }));
+      }
+
+      try {
+        synchronizeFolders(nextFolderIndex, count, folderSynchronization);
+      } catch (Exception e) {
+        // Stop other workers after their current folder
+        nextFolderIndex.set(count);
+        try {
+          waitWorkers(workerFutures);
+        } catch (Exception workerException) {
+          LOG.error("Error while synchronizing folders of user: " + username, workerException);
+        }
+        throw e;
+      }
+      waitWorkers(workerFutures);
+    }
+
+    private void synchronizeFolders(AtomicInteger nextFolderIndex, int count, FolderSynchronization folderSynchronization) throws Exception {
+      int folderIndex = nextFolderIndex.getAndIncrement();
+      while (folderIndex < count) {
+        folderSynchronization.synchronize(folderIndex);
+        folderIndex = nextFolderIndex.getAndIncrement();
+      }
+    }
+
+    private void waitWorkers(List<Future<?>> workerFutures) throws Exception {
+      Exception workerException = null;
+      for (Future<?> workerFuture : workerFutures) {
+        // Workers not started yet have nothing left to synchronize
+        workerFuture.cancel(false);
+        try {
+          workerFuture.get();
+        } catch (CancellationException e) {
+          // Worker not started
+        } catch (InterruptedException e) {
+          for (Future<?> future : workerFutures) {
+            future.cancel(true);
+          }
+          throw e;
+        } catch (ExecutionException e) {
+          if (workerException == null) {
+            workerException = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+          } else {
+            LOG.error("Error while synchronizing folders of user: " + username, e.getCause());
+          }
+        }
+      }
+      if (workerException != null) {
+        throw workerException;
+      }
+    }
+
     private void waitOtherTasks() {
       int i = 0;
       while (integrationService.isSynchronizationStarted() && i < 10) {
@@ -364,39 +971,56 @@ public class IntegrationListener implements Startable {
       }
     }
 
-    private void synchronizeByModificationDate(Date lastSyncDate, List<String> updatedExoEventIDs) throws Exception {
-      // synchronize eXo Calendar with Exchange
-      for (FolderId folderId : calendarFolderIds) {
-        Calendar calendar = integrationService.getUserCalendarByExchangeFolderId(folderId);
-        if (calendar == null || lastSyncDate == null) {
-          integrationService.synchronizeFullCalendar(folderId);
-        } else {
-          integrationService.synchronizeModificationsOfCalendar(folderId, lastSyncDate, updatedExoEventIDs, diffTimeZone);
+    private void synchronizeByModificationDate(final Date lastSyncDate, SynchronizationContext context) throws Exception {
+      if (folderSynchronizationThreads < 2 || calendarFolderIds.size() < 2) {
+        // synchronize eXo Calendar with Exchange
+        for (FolderId folderId : calendarFolderIds) {
+          synchronizeFolderByModificationDate(folderId, lastSyncDate, context);
+        }
+        return;
+      }
+
+      // Each folder uses its own copy of the context, the copies are merged
+      // when all folders are synchronized
+      final List<FolderId> folderIds = new ArrayList<FolderId>(calendarFolderIds);
+      final List<SynchronizationContext> folderContexts = new ArrayList<SynchronizationContext>();
+      for (int i = 0; i < folderIds.size(); i++) {
+        folderContexts.add(context.newFolderContext());
+      }
+      synchronizeFolders(folderIds.size(), new FolderSynchronization() {
+        @Override
+        public void synchronize(int folderIndex) throws Exception {
+          synchronizeFolderByModificationDate(folderIds.get(folderIndex), lastSyncDate, folderContexts.get(folderIndex));
         }
+      });
+
+      for (SynchronizationContext folderContext : folderContexts) {
+        context.merge(folderContext);
       }
     }
 
-    private void synchronizeExchangeApointments(GetEventsResults events, List<String> updatedExoEventIDs) throws Exception {
+    private void synchronizeFolderByModificationDate(FolderId folderId, Date lastSyncDate, SynchronizationContext context) throws Exception {
+      Calendar calendar = integrationService.getUserCalendarByExchangeFolderId(folderId);
+      if (calendar == null || lastSyncDate == null) {
+        integrationService.synchronizeFullCalendar(folderId);
+      } else {
+        integrationService.synchronizeModificationsOfCalendar(folderId, lastSyncDate, context, diffTimeZone);
+      }
+    }
+
+    private void synchronizeExchangeApointments(GetEventsResults events, SynchronizationContext context) throws Exception {
       // loop through Appointment events
       Iterable<ItemEvent> itemEvents = events.getItemEvents();
-      if (itemEvents.iterator().hasNext()) {
-        List<String> itemIds = new ArrayList<String>();
-        for (ItemEvent itemEvent : itemEvents) {
-          if (itemIds.contains(itemEvent.getItemId().getUniqueId())) {
-            continue;
-          }
-          itemIds.add(itemEvent.getItemId().getUniqueId());
-          List<CalendarEvent> updatedEvents = integrationService.createOrUpdateOrDelete(itemEvent);
-          if (updatedEvents != null && !updatedEvents.isEmpty() && updatedExoEventIDs != null) {
-            for (CalendarEvent calendarEvent : updatedEvents) {
-              updatedExoEventIDs.add(calendarEvent.getId());
-            }
-          }
+      for (ItemEvent itemEvent : itemEvents) {
+        if (!context.addSynchronizedItemID(itemEvent.getItemId().getUniqueId())) {
+          continue;
         }
+        List<CalendarEvent> updatedEvents = integrationService.createOrUpdateOrDelete(itemEvent);
+        context.addUpdatedEvents(updatedEvents);
       }
     }
 
-    private void synchronizeExchangeFolders(GetEventsResults events, List<String> updatedExoEventIDs) throws Exception {
+    private void synchronizeExchangeFolders(GetEventsResults events, SynchronizationContext context) throws Exception {
       // If Calendar Folders was modified
       if (events.getFolderEvents() != null && events.getFolderEvents().iterator().hasNext()) {
         Iterator<FolderEvent> iterator = events.getFolderEvents().iterator();
@@ -405,7 +1029,7 @@ public class IntegrationListener implements Startable {
           if (folderEvent.getEventType().equals(EventType.Created) || folderEvent.getEventType().equals(EventType.Modified)) {
             if (!integrationService.isCalendarPresentInExo(folderEvent.getFolderId())) {
               List<String> updatedEventIDs = integrationService.synchronizeFullCalendar(folderEvent.getFolderId());
-              updatedExoEventIDs.addAll(updatedEventIDs);
+              context.addUpdatedEventIDs(updatedEventIDs);
               if (!updatedEventIDs.isEmpty() && !calendarFolderIds.contains(folderEvent.getFolderId())) {
                 calendarFolderIds.add(folderEvent.getFolderId());
               }
@@ -440,7 +1064,9 @@ public class IntegrationListener implements Startable {
           }
         }
       }
-      subscription = integrationService.getService().subscribeToPullNotifications(calendarFolderIds, 5, null, EventType.Modified, EventType.Created, EventType.Deleted);
+      // The subscription is bound to its service, don't use the service leased
+      // for this synchronization
+      subscription = integrationService.getSubscriptionService().subscribeToPullNotifications(calendarFolderIds, 5, null, EventType.Modified, EventType.Created, EventType.Deleted);
     }
 
     @Override
@@ -461,4 +1087,11 @@ public class IntegrationListener implements Startable {
       super.interrupt();
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Synchronization of one folder among the folders synchronized in parallel.
+   */
+  private interface FolderSynchronization {
+    void synchronize(int folderIndex) throws Exception;
+  }
+}
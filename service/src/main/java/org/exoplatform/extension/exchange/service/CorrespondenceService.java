@@ -5,10 +5,11 @@ import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jcr.Node;
 import javax.jcr.Session;
@@ -28,9 +29,18 @@ public class CorrespondenceService implements Serializable {
   private final static Log LOG = ExoLogger.getLogger(CorrespondenceService.class);
 
   private static final String EXCHANGE_NODE_NAME = "calendar-exchange-extension";
+  private static final String FINGERPRINTS_NODE_NAME = "calendar-exchange-fingerprints";
 
   // Map of userId, correspondence exchange and eXo Ids
-  private Map<String, Properties> propertiesMap = new HashMap<String, Properties>();
+  private ConcurrentMap<String, Properties> propertiesMap = new ConcurrentHashMap<String, Properties>();
+
+  // Map of userId, content fingerprints by eXo event or Exchange item Id. They
+  // are stored apart to not rewrite them with each correspondence change
+  private ConcurrentMap<String, Properties> fingerprintsMap = new ConcurrentHashMap<String, Properties>();
+
+  // Map of synchronized eXo calendar id, userId, of logged in users. It's
+  // read by JCR actions for each calendar modification
+  private final ConcurrentMap<String, String> synchronizedCalendarOwners = new ConcurrentHashMap<String, String>();
 
   private NodeHierarchyCreator hierarchyCreator;
   private SessionProviderService providerService;
@@ -40,6 +50,46 @@ public class CorrespondenceService implements Serializable {
     this.providerService = providerService;
   }
 
+  /**
+   * 
+   * @param calendarId
+   *          eXo calendar id
+   * @return the user whose calendar is synchronized with Exchange, or null if
+   *         the calendar isn't synchronized or the user's correspondences
+   *         aren't loaded
+   */
+  public String getSynchronizedCalendarOwner(String calendarId) {
+    return calendarId == null ? null : synchronizedCalendarOwners.get(calendarId);
+  }
+
+  /**
+   * 
+   * Registers the synchronized calendars of the user when the user logs in,
+   * so modifications of their events are pushed to Exchange.
+   * 
+   * @param username
+   * @throws Exception
+   */
+  public void registerSynchronizedCalendars(String username) throws Exception {
+    addSynchronizedCalendarOwners(username, loadCorrespondenceProperties(username));
+  }
+
+  /**
+   * 
+   * Unregisters the synchronized calendars of the user when the user logs
+   * out.
+   * 
+   * @param username
+   */
+  public void unregisterSynchronizedCalendars(String username) {
+    Iterator<String> owners = synchronizedCalendarOwners.values().iterator();
+    while (owners.hasNext()) {
+      if (username.equals(owners.next())) {
+        owners.remove();
+      }
+    }
+  }
+
   /**
    * 
    * Gets Id of exchange from eXo Calendar or Event Id and vice versa
@@ -69,6 +119,10 @@ public class CorrespondenceService implements Serializable {
   protected void setCorrespondingId(String username, String exoId, String exchangeId) throws Exception {
     String oldExoId = getCorrespondingId(username, exchangeId);
     String oldExchangeId = getCorrespondingId(username, exoId);
+    if (exoId.equals(oldExoId) && exchangeId.equals(oldExchangeId)) {
+      // Nothing to save
+      return;
+    }
     if ((oldExoId != null && !oldExoId.equals(exoId)) || (oldExchangeId != null && !oldExchangeId.equals(exchangeId))) {
       if (LOG.isTraceEnabled()) {
         LOG.trace("Exchange integration, correspondence service : An old existing ID will be replaced by another one.");
@@ -80,6 +134,9 @@ public class CorrespondenceService implements Serializable {
     Properties properties = loadCorrespondenceProperties(username);
     properties.setProperty(exchangeId, exoId);
     properties.setProperty(exoId, exchangeId);
+    if (CalendarConverterService.isExchangeCalendarId(exoId)) {
+      synchronizedCalendarOwners.put(exoId, username);
+    }
     saveProperties(username, properties);
   }
 
@@ -96,7 +153,9 @@ public class CorrespondenceService implements Serializable {
     Properties properties = loadCorrespondenceProperties(username);
     properties.remove(exchangeId);
     properties.remove(exoId);
+    synchronizedCalendarOwners.remove(exoId, username);
     saveProperties(username, properties);
+    deleteFingerprints(username, exchangeId, exoId);
   }
 
   protected void deleteCorrespondingId(String username, String id) throws Exception {
@@ -105,7 +164,54 @@ public class CorrespondenceService implements Serializable {
     if (secondId != null) {
       properties.remove(id);
       properties.remove(secondId);
+      synchronizedCalendarOwners.remove(id, username);
+      synchronizedCalendarOwners.remove(secondId, username);
       saveProperties(username, properties);
+      deleteFingerprints(username, id, secondId);
+    }
+  }
+
+  /**
+   * 
+   * Gets the content fingerprint of an eXo event or Exchange item as it was
+   * when last synchronized.
+   * 
+   * @param username
+   * @param id
+   *          eXo event or Exchange item id
+   * @return the fingerprint, or null if not computed
+   * @throws Exception
+   */
+  protected String getFingerprint(String username, String id) throws Exception {
+    return loadFingerprintProperties(username).getProperty(id);
+  }
+
+  /**
+   * 
+   * Sets the content fingerprint of an eXo event or Exchange item after
+   * synchronizing it.
+   * 
+   * @param username
+   * @param id
+   *          eXo event or Exchange item id
+   * @param fingerprint
+   * @throws Exception
+   */
+  protected void setFingerprint(String username, String id, String fingerprint) throws Exception {
+    Properties fingerprints = loadFingerprintProperties(username);
+    if (fingerprint.equals(fingerprints.getProperty(id))) {
+      return;
+    }
+    fingerprints.setProperty(id, fingerprint);
+    saveFingerprints(username, fingerprints);
+  }
+
+  private void deleteFingerprints(String username, String firstId, String secondId) throws Exception {
+    Properties fingerprints = loadFingerprintProperties(username);
+    boolean removed = fingerprints.remove(firstId) != null;
+    removed |= fingerprints.remove(secondId) != null;
+    if (removed) {
+      saveFingerprints(username, fingerprints);
     }
   }
 
@@ -124,43 +230,82 @@ public class CorrespondenceService implements Serializable {
   }
 
   private void saveProperties(String username, Properties properties) throws Exception {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    properties.store(out, "");
-    SessionProvider sessionProvider = providerService.getSystemSessionProvider(null);
-    Node node = hierarchyCreator.getUserApplicationNode(sessionProvider, username);
-    if (node == null) {
-      throw new IllegalStateException("User application node not found. Please fix this and try later.");
-    }
-    Session session = node.getSession();
-    if (!node.hasNode(EXCHANGE_NODE_NAME)) {
-      node = node.addNode(EXCHANGE_NODE_NAME, Utils.NT_RESOURCE);
-      node.setProperty(Utils.JCR_LASTMODIFIED, java.util.Calendar.getInstance().getTimeInMillis());
-      node.setProperty(Utils.JCR_MIMETYPE, "text/plain");
-    } else {
-      node = node.getNode(EXCHANGE_NODE_NAME);
-    }
-    node.setProperty(Utils.JCR_DATA, new ByteArrayInputStream(out.toByteArray()));
-    session.save();
+    storeProperties(username, EXCHANGE_NODE_NAME, properties);
   }
 
-  private Properties loadCorrespondenceProperties(String username) throws Exception {
-    Properties properties = propertiesMap.get(username);
-    if (properties == null) {
-      properties = new Properties();
+  private void saveFingerprints(String username, Properties fingerprints) throws Exception {
+    storeProperties(username, FINGERPRINTS_NODE_NAME, fingerprints);
+  }
 
-      // Load properties from JCR
+  private void storeProperties(String username, String nodeName, Properties properties) throws Exception {
+    // Folders of the same user may be synchronized in parallel
+    synchronized (properties) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      properties.store(out, "");
       SessionProvider sessionProvider = providerService.getSystemSessionProvider(null);
       Node node = hierarchyCreator.getUserApplicationNode(sessionProvider, username);
       if (node == null) {
         throw new IllegalStateException("User application node not found. Please fix this and try later.");
       }
-      if (node.hasNode(EXCHANGE_NODE_NAME)) {
-        node = node.getNode(EXCHANGE_NODE_NAME);
-        InputStream inputStream = node.getProperty(Utils.JCR_DATA).getStream();
-        properties.load(inputStream);
+      Session session = node.getSession();
+      if (!node.hasNode(nodeName)) {
+        node = node.addNode(nodeName, Utils.NT_RESOURCE);
+        node.setProperty(Utils.JCR_LASTMODIFIED, java.util.Calendar.getInstance().getTimeInMillis());
+        node.setProperty(Utils.JCR_MIMETYPE, "text/plain");
+      } else {
+        node = node.getNode(nodeName);
       }
+      node.setProperty(Utils.JCR_DATA, new ByteArrayInputStream(out.toByteArray()));
+      session.save();
+    }
+  }
 
-      propertiesMap.put(username, properties);
+  private Properties loadCorrespondenceProperties(String username) throws Exception {
+    Properties properties = propertiesMap.get(username);
+    if (properties == null) {
+      properties = readProperties(username, EXCHANGE_NODE_NAME);
+      // Register owners before the properties are visible to other threads
+      addSynchronizedCalendarOwners(username, properties);
+
+      Properties existingProperties = propertiesMap.putIfAbsent(username, properties);
+      if (existingProperties != null) {
+        properties = existingProperties;
+      }
+    }
+    return properties;
+  }
+
+  private void addSynchronizedCalendarOwners(String username, Properties properties) {
+    for (String name : properties.stringPropertyNames()) {
+      if (CalendarConverterService.isExchangeCalendarId(name)) {
+        synchronizedCalendarOwners.put(name, username);
+      }
+    }
+  }
+
+  private Properties loadFingerprintProperties(String username) throws Exception {
+    Properties fingerprints = fingerprintsMap.get(username);
+    if (fingerprints == null) {
+      fingerprints = readProperties(username, FINGERPRINTS_NODE_NAME);
+      Properties existingFingerprints = fingerprintsMap.putIfAbsent(username, fingerprints);
+      if (existingFingerprints != null) {
+        fingerprints = existingFingerprints;
+      }
+    }
+    return fingerprints;
+  }
+
+  private Properties readProperties(String username, String nodeName) throws Exception {
+    Properties properties = new Properties();
+    SessionProvider sessionProvider = providerService.getSystemSessionProvider(null);
+    Node node = hierarchyCreator.getUserApplicationNode(sessionProvider, username);
+    if (node == null) {
+      throw new IllegalStateException("User application node not found. Please fix this and try later.");
+    }
+    if (node.hasNode(nodeName)) {
+      node = node.getNode(nodeName);
+      InputStream inputStream = node.getProperty(Utils.JCR_DATA).getStream();
+      properties.load(inputStream);
     }
     return properties;
   }
@@ -2,7 +2,9 @@ package org.exoplatform.extension.exchange.service;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.security.RolesAllowed;
 import javax.ws.rs.Consumes;
@@ -12,11 +14,12 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
-
-import microsoft.exchange.webservices.data.Folder;
-import microsoft.exchange.webservices.data.FolderId;
+import javax.ws.rs.core.Response.ResponseBuilder;
 
 import org.exoplatform.common.http.HTTPStatus;
 import org.exoplatform.extension.exchange.listener.IntegrationListener;
@@ -42,6 +45,14 @@ public class ExchangeRESTService implements ResourceContainer, Serializable {
     cc.setNoStore(true);
   }
 
+  // Calendars list can be kept by the browser, but it has to be revalidated
+  // using its ETag
+  static CacheControl revalidateCC = new CacheControl();
+  static {
+    revalidateCC.setNoCache(true);
+    revalidateCC.setPrivate(true);
+  }
+
   private IntegrationListener integrationListener;
   private OrganizationService organizationService;
 
@@ -54,7 +65,7 @@ public class ExchangeRESTService implements ResourceContainer, Serializable {
   @RolesAllowed("users")
   @Path("/calendars")
   @Produces({ MediaType.APPLICATION_JSON })
-  public Response getCalendars() throws Exception {
+  public Response getCalendars(@Context Request request) throws Exception {
     // It must be a user present in the session because of RolesAllowed
     // annotation
     String username = ConversationState.getCurrent().getIdentity().getUserId();
@@ -63,17 +74,30 @@ public class ExchangeRESTService implements ResourceContainer, Serializable {
 
       IntegrationService service = IntegrationService.getInstance(username);
       if (service != null) {
-        List<FolderId> folderIDs = service.getAllExchangeCalendars();
-        for (FolderId folderId : folderIDs) {
-          Folder folder = service.getExchangeCalendar(folderId);
-          if (folder != null) {
-            boolean synchronizedFolder = service.isCalendarSynchronizedWithExchange(folderId.getUniqueId());
-            FolderBean bean = new FolderBean(folderId.getUniqueId(), folder.getDisplayName(), synchronizedFolder);
-            beans.add(bean);
+        Map<String, String> folderNames = service.getExchangeCalendarFolderNames();
+        if (folderNames == null) {
+          // First listing for this session, wait for it
+          if (!service.refreshExchangeCalendarFolders()) {
+            // All Exchange services are busy, the client retries later
+            return Response.status(HTTPStatus.SERVICE_UNAVAILABLE).cacheControl(cc).build();
           }
+          folderNames = service.getExchangeCalendarFolderNames();
+        } else if (service.isExchangeCalendarFoldersExpired()) {
+          // Serve the last listing and refresh it in background
+          integrationListener.submitFoldersRefresh(username, service);
         }
+        for (Map.Entry<String, String> folderName : folderNames.entrySet()) {
+          // Synchronization state is read from the in-memory correspondence
+          boolean synchronizedFolder = service.isCalendarSynchronizedWithExchange(folderName.getKey());
+          beans.add(new FolderBean(folderName.getKey(), folderName.getValue(), synchronizedFolder));
+        }
+      }
+      EntityTag entityTag = getEntityTag(beans);
+      ResponseBuilder notModifiedBuilder = request.evaluatePreconditions(entityTag);
+      if (notModifiedBuilder != null) {
+        return notModifiedBuilder.tag(entityTag).cacheControl(revalidateCC).build();
       }
-      return Response.ok(beans).cacheControl(cc).build();
+      return Response.ok(beans).tag(entityTag).cacheControl(revalidateCC).build();
     } catch (Exception e) {
       if (LOG.isTraceEnabled()) {
         LOG.trace("Exchange Inegration Service: Unable to retrieve list of calendars for user: '" + username + "'");
@@ -85,6 +109,7 @@ public class ExchangeRESTService implements ResourceContainer, Serializable {
   @GET
   @RolesAllowed("users")
   @Path("/sync")
+  @Produces({ MediaType.APPLICATION_JSON })
   public Response synchronizeFolderWithExo(@QueryParam("folderId") String folderIdString) throws Exception {
     if (folderIdString == null || folderIdString.isEmpty()) {
       LOG.warn("folderId parameter is null while synchronizing.");
@@ -95,7 +120,78 @@ public class ExchangeRESTService implements ResourceContainer, Serializable {
     String username = ConversationState.getCurrent().getIdentity().getUserId();
     IntegrationService service = IntegrationService.getInstance(username);
     service.addFolderToSynchronization(folderIdString);
-    return Response.ok().build();
+
+    // Import the folder now instead of waiting for the scheduled
+    // synchronization
+    SynchronizationJob job = integrationListener.submitSynchronizationJob(username, Collections.singletonList(folderIdString));
+    if (job == null) {
+      return Response.ok().cacheControl(cc).build();
+    }
+    return Response.ok(job, MediaType.APPLICATION_JSON).cacheControl(cc).build();
+  }
+
+  @POST
+  @RolesAllowed("users")
+  @Path("/folders")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces({ MediaType.APPLICATION_JSON })
+  public Response setSynchronizedFolders(FoldersBean folders) throws Exception {
+    if (folders == null || folders.getFolderIds() == null) {
+      LOG.warn("folderIds parameter is null while setting synchronized folders.");
+      return Response.status(HTTPStatus.BAD_REQUEST).cacheControl(cc).build();
+    }
+    for (String folderId : folders.getFolderIds()) {
+      if (folderId == null || folderId.isEmpty()) {
+        LOG.warn("folderIds parameter contains an empty id while setting synchronized folders.");
+        return Response.status(HTTPStatus.BAD_REQUEST).cacheControl(cc).build();
+      }
+    }
+    // It must be a user present in the session because of RolesAllowed
+    // annotation
+    String username = ConversationState.getCurrent().getIdentity().getUserId();
+    IntegrationService service = IntegrationService.getInstance(username);
+    if (service == null) {
+      return Response.status(HTTPStatus.NOT_FOUND).cacheControl(cc).build();
+    }
+    List<String> addedFolderIds = service.setSynchronizedFolders(folders.getFolderIds());
+
+    // One import of all added folders
+    SynchronizationJob job = addedFolderIds.isEmpty() ? null : integrationListener.submitSynchronizationJob(username, addedFolderIds);
+    if (job == null) {
+      return Response.ok().cacheControl(cc).build();
+    }
+    return Response.ok(job, MediaType.APPLICATION_JSON).cacheControl(cc).build();
+  }
+
+  @GET
+  @RolesAllowed("users")
+  @Path("/sync/status")
+  @Produces({ MediaType.APPLICATION_JSON })
+  public Response getSynchronizationJob(@QueryParam("jobId") String jobId) throws Exception {
+    // It must be a user present in the session because of RolesAllowed
+    // annotation
+    String username = ConversationState.getCurrent().getIdentity().getUserId();
+    SynchronizationJob job = jobId == null ? null : integrationListener.getSynchronizationJob(username, jobId);
+    if (job == null) {
+      return Response.status(HTTPStatus.NOT_FOUND).cacheControl(cc).build();
+    }
+    return Response.ok(job, MediaType.APPLICATION_JSON).cacheControl(cc).build();
+  }
+
+  @GET
+  @RolesAllowed("users")
+  @Path("/sync/cancel")
+  @Produces({ MediaType.APPLICATION_JSON })
+  public Response cancelSynchronizationJob(@QueryParam("jobId") String jobId) throws Exception {
+    // It must be a user present in the session because of RolesAllowed
+    // annotation
+    String username = ConversationState.getCurrent().getIdentity().getUserId();
+    SynchronizationJob job = jobId == null ? null : integrationListener.getSynchronizationJob(username, jobId);
+    if (job == null) {
+      return Response.status(HTTPStatus.NOT_FOUND).cacheControl(cc).build();
+    }
+    job.cancel();
+    return Response.ok(job, MediaType.APPLICATION_JSON).cacheControl(cc).build();
   }
 
   @GET
@@ -160,6 +256,16 @@ public class ExchangeRESTService implements ResourceContainer, Serializable {
     }
   }
 
+  private static EntityTag getEntityTag(List<FolderBean> beans) {
+    int hash = 1;
+    for (FolderBean bean : beans) {
+      hash = 31 * hash + bean.getId().hashCode();
+      hash = 31 * hash + (bean.getName() == null ? 0 : bean.getName().hashCode());
+      hash = 31 * hash + (bean.isSynchronizedFolder() ? 1231 : 1237);
+    }
+    return new EntityTag(Integer.toHexString(hash) + "-" + beans.size());
+  }
+
   public static class FolderBean implements Serializable {
     private static final long serialVersionUID = 4517749353533921356L;
 
@@ -198,6 +304,20 @@ public class ExchangeRESTService implements ResourceContainer, Serializable {
     }
   }
 
+  public static class FoldersBean implements Serializable {
+    private static final long serialVersionUID = -5409183529361207753L;
+
+    private List<String> folderIds;
+
+    public List<String> getFolderIds() {
+      return folderIds;
+    }
+
+    public void setFolderIds(List<String> folderIds) {
+      this.folderIds = folderIds;
+    }
+  }
+
   public static class UserSettings implements Serializable {
     private static final long serialVersionUID = -3248503274980906631L;
 
@@ -0,0 +1,161 @@
+package org.exoplatform.extension.exchange.service;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import microsoft.exchange.webservices.data.ConnectingIdType;
+import microsoft.exchange.webservices.data.ExchangeCredentials;
+import microsoft.exchange.webservices.data.ExchangeService;
+import microsoft.exchange.webservices.data.ExchangeVersion;
+import microsoft.exchange.webservices.data.ImpersonatedUserId;
+import microsoft.exchange.webservices.data.WebCredentials;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ *
+ * Pool of Exchange services authenticated with a service account that has the
+ * ApplicationImpersonation role. A service is leased for one user at a time,
+ * the impersonated user is set on lease and cleared on release, so the HTTP
+ * connections of a pooled service are reused by all users.
+ *
+ * @author Boubaker Khanfir
+ *
+ */
+public class ExchangeServicePool {
+
+  private final static Log LOG = ExoLogger.getLogger(ExchangeServicePool.class);
+
+  private final BlockingQueue<ExchangeService> idleServices;
+
+  // Services currently leased, compared by identity
+  private final Set<ExchangeService> leasedServices = Collections.newSetFromMap(new IdentityHashMap<ExchangeService, Boolean>());
+
+  private final String serviceAccountUsername;
+
+  private final String serviceAccountPassword;
+
+  private final String domain;
+
+  private final String serverURL;
+
+  private final long acquireTimeoutInMillis;
+
+  public ExchangeServicePool(String serviceAccountUsername, String serviceAccountPassword, String domain, String serverURL, int size, long acquireTimeoutInMillis) throws Exception {
+    this.serviceAccountUsername = serviceAccountUsername;
+    this.serviceAccountPassword = serviceAccountPassword;
+    this.domain = domain;
+    this.serverURL = serverURL;
+    this.acquireTimeoutInMillis = acquireTimeoutInMillis;
+    this.idleServices = new ArrayBlockingQueue<ExchangeService>(size);
+    for (int i = 0; i < size; i++) {
+      idleServices.add(newService());
+    }
+    LOG.info("Exchange impersonation service pool initialized with " + size + " services.");
+  }
+
+  /**
+   *
+   * Leases a service impersonating the given Exchange user. Waits until a
+   * service is available, at most the acquire timeout of the pool.
+   *
+   * @param exchangeUsername
+   * @param preferredService
+   *          service leased previously by the same user, reused if idle
+   * @return the leased service, null if no service was available in time
+   * @throws InterruptedException
+   */
+  public ExchangeService acquire(String exchangeUsername, ExchangeService preferredService) throws InterruptedException {
+    ExchangeService service = null;
+    if (preferredService != null && idleServices.remove(preferredService)) {
+      service = preferredService;
+    } else {
+      service = idleServices.poll(acquireTimeoutInMillis, TimeUnit.MILLISECONDS);
+      if (service == null) {
+        LOG.warn("No Exchange service available in impersonation pool after " + acquireTimeoutInMillis + "ms for user: " + exchangeUsername);
+        return null;
+      }
+    }
+    lease(service, exchangeUsername);
+    return service;
+  }
+
+  /**
+   *
+   * Leases a service impersonating the given Exchange user if one is idle,
+   * without waiting.
+   *
+   * @param exchangeUsername
+   * @return the leased service, null if no service is idle
+   */
+  public ExchangeService tryAcquire(String exchangeUsername) {
+    ExchangeService service = idleServices.poll();
+    if (service != null) {
+      lease(service, exchangeUsername);
+    }
+    return service;
+  }
+
+  /**
+   *
+   * Creates a service impersonating the given Exchange user that isn't part of
+   * the pool. EWS pull subscriptions are bound to the service that created
+   * them, so they can't use pooled services that are leased to other users
+   * between synchronizations.
+   *
+   * @param exchangeUsername
+   * @return
+   * @throws Exception
+   */
+  public ExchangeService newDedicatedService(String exchangeUsername) throws Exception {
+    ExchangeService service = newService();
+    service.setImpersonatedUserId(new ImpersonatedUserId(ConnectingIdType.PrincipalName, exchangeUsername + "@" + domain));
+    return service;
+  }
+
+  /**
+   *
+   * Gives back a leased service to the pool. A service that isn't currently
+   * leased, because it was already released or doesn't belong to this pool, is
+   * rejected, so the same instance can't be leased to two users.
+   *
+   * @param service
+   */
+  public void release(ExchangeService service) {
+    if (service == null) {
+      return;
+    }
+    synchronized (leasedServices) {
+      if (!leasedServices.remove(service)) {
+        LOG.warn("Exchange service was released twice or doesn't belong to this pool, ignore it.");
+        return;
+      }
+    }
+    service.setImpersonatedUserId(null);
+    idleServices.offer(service);
+  }
+
+  private void lease(ExchangeService service, String exchangeUsername) {
+    synchronized (leasedServices) {
+      leasedServices.add(service);
+    }
+    service.setImpersonatedUserId(new ImpersonatedUserId(ConnectingIdType.PrincipalName, exchangeUsername + "@" + domain));
+  }
+
+  private ExchangeService newService() throws Exception {
+    ExchangeService service = new ExchangeService(ExchangeVersion.Exchange2010_SP2, TimeZone.getDefault());
+    service.setTimeout(20000);
+    ExchangeCredentials credentials = new WebCredentials(serviceAccountUsername + "@" + domain, serviceAccountPassword);
+    service.setCredentials(credentials);
+    service.setUrl(new URI(serverURL));
+    return service;
+  }
+
+}
@@ -57,17 +57,31 @@ public class ExchangeStorageService implements Serializable {
    */
   public List<FolderId> getAllExchangeCalendars(ExchangeService service) throws Exception {
     List<FolderId> calendarFolderIds = new ArrayList<FolderId>();
+    for (Folder calendarFolder : getAllExchangeCalendarFolders(service)) {
+      calendarFolderIds.add(calendarFolder.getId());
+    }
+    return calendarFolderIds;
+  }
+
+  /**
+   * 
+   * Gets personnal Exchange Calendars with their display names, using one
+   * request for the root folder and one request for its subfolders.
+   * 
+   * @return list of Folder
+   * @throws Exception
+   */
+  public List<Folder> getAllExchangeCalendarFolders(ExchangeService service) throws Exception {
+    List<Folder> calendarFolders = new ArrayList<Folder>();
     CalendarFolder calendarRootFolder = CalendarFolder.bind(service, WellKnownFolderName.Calendar);
 
-    calendarFolderIds.add(calendarRootFolder.getId());
-    List<Folder> calendarfolders = searchSubFolders(service, calendarRootFolder.getId());
+    calendarFolders.add(calendarRootFolder);
+    List<Folder> calendarSubFolders = searchSubFolders(service, calendarRootFolder.getId());
 
-    if (calendarfolders != null && !calendarfolders.isEmpty()) {
-      for (Folder tmpFolder : calendarfolders) {
-        calendarFolderIds.add(tmpFolder.getId());
-      }
+    if (calendarSubFolders != null && !calendarSubFolders.isEmpty()) {
+      calendarFolders.addAll(calendarSubFolders);
     }
-    return calendarFolderIds;
+    return calendarFolders;
   }
 
   /**
@@ -171,8 +185,12 @@ public class ExchangeStorageService implements Serializable {
             * test if appointment wasn't deleted by previous
             * 'toDeleteOccurences' List
             */if (correspondenceService.getCorrespondingId(username, event.getId()) != null) {
-      LOG.info("Update Exchange Appointment: " + event.getSummary());
-      appointment.update(ConflictResolutionMode.AlwaysOverwrite);
+      if (CalendarConverterService.isAppointmentModified(appointment)) {
+        LOG.info("Update Exchange Appointment: " + event.getSummary());
+        appointment.update(ConflictResolutionMode.AlwaysOverwrite);
+      } else if (LOG.isTraceEnabled()) {
+        LOG.trace("Exchange Appointment is unchanged, ignore updating: " + event.getSummary());
+      }
       correspondenceService.setCorrespondingId(username, event.getId(), appointment.getId().getUniqueId());
     }
     if (eventsToUpdateModifiedTime != null) {
@@ -6,10 +6,17 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
 
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
 
 import microsoft.exchange.webservices.data.Appointment;
 import microsoft.exchange.webservices.data.Folder;
@@ -19,7 +26,9 @@ import org.exoplatform.calendar.service.CalendarEvent;
 import org.exoplatform.calendar.service.CalendarService;
 import org.exoplatform.calendar.service.impl.CalendarServiceImpl;
 import org.exoplatform.calendar.service.impl.JCRDataStorage;
+import org.exoplatform.commons.utils.ISO8601;
 import org.exoplatform.extension.exchange.service.util.CalendarConverterService;
+import org.exoplatform.services.jcr.ext.app.SessionProviderService;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
@@ -38,11 +47,13 @@ public class ExoStorageService implements Serializable {
   private JCRDataStorage storage;
   private OrganizationService organizationService;
   private CorrespondenceService correspondenceService;
+  private SessionProviderService providerService;
 
-  public ExoStorageService(OrganizationService organizationService, CalendarService calendarService, CorrespondenceService correspondenceService) {
+  public ExoStorageService(OrganizationService organizationService, CalendarService calendarService, CorrespondenceService correspondenceService, SessionProviderService providerService) {
     this.storage = ((CalendarServiceImpl) calendarService).getDataStorage();
     this.organizationService = organizationService;
     this.correspondenceService = correspondenceService;
+    this.providerService = providerService;
   }
 
   /**
@@ -303,7 +314,7 @@ public class ExoStorageService implements Serializable {
    * @throws Exception
    */
   public String getExoEventMasterRecurenceByOriginalUUID(String uuid) throws Exception {
-    Node node = storage.getSession(SessionProvider.createSystemProvider()).getNodeByUUID(uuid);
+    Node node = getNodeByUUID(uuid);
     if (node == null) {
       if (LOG.isTraceEnabled()) {
         LOG.trace("No original recurrent node was found with UUID: " + uuid);
@@ -336,24 +347,117 @@ public class ExoStorageService implements Serializable {
    */
   public List<CalendarEvent> findExoEventsModifiedSince(String username, Calendar calendar, Date date) throws Exception {
     List<CalendarEvent> resultEvents = new ArrayList<CalendarEvent>();
-    List<CalendarEvent> calendarEvents = getAllExoEvents(username, calendar);
-    for (CalendarEvent calendarEvent : calendarEvents) {
-      if (calendarEvent.getLastUpdatedTime() == null) {
-        continue;
-      }
-      if (calendarEvent.getLastUpdatedTime().after(date)) {
+
+    // Search only modified events instead of loading all calendar events
+    java.util.Calendar modifiedSince = java.util.Calendar.getInstance();
+    modifiedSince.setTime(date);
+    Node calendarHome = storage.getUserCalendarHome(username);
+    StringBuilder statement = new StringBuilder("/jcr:root").append(encodePath(calendarHome.getPath())).append("/").append(encodeName(calendar.getId()));
+    statement.append("//element(*,exo:calendarEvent)[@exo:dateModified > xs:dateTime('").append(ISO8601.format(modifiedSince)).append("')]");
+    statement.append(" order by @exo:dateModified ascending");
+    QueryManager queryManager = calendarHome.getSession().getWorkspace().getQueryManager();
+    Query query = queryManager.createQuery(statement.toString(), Query.XPATH);
+
+    // Result nodes are loaded while iterating
+    NodeIterator nodeIterator = query.execute().getNodes();
+    while (nodeIterator.hasNext()) {
+      CalendarEvent calendarEvent = storage.getEvent(nodeIterator.nextNode());
+      // Milliseconds may be lost in query date comparison
+      if (calendarEvent.getLastUpdatedTime() != null && calendarEvent.getLastUpdatedTime().after(date)) {
         resultEvents.add(calendarEvent);
       }
     }
     return resultEvents;
   }
 
+  /**
+   * Encodes the names of a JCR path with ISO 9075, to use it in XPath queries.
+   */
+  private static String encodePath(String path) {
+    StringBuilder encodedPath = new StringBuilder();
+    String[] names = path.split("/", -1);
+    for (int i = 0; i < names.length; i++) {
+      if (i > 0) {
+        encodedPath.append('/');
+      }
+      encodedPath.append(encodeName(names[i]));
+    }
+    return encodedPath.toString();
+  }
+
+  /**
+   * Encodes the local part of a JCR name with ISO 9075: characters that are
+   * not allowed in XML names are replaced by _xHHHH_.
+   */
+  private static String encodeName(String name) {
+    int prefixIndex = name.indexOf(':');
+    StringBuilder encodedName = new StringBuilder(name.substring(0, prefixIndex + 1));
+    String localName = name.substring(prefixIndex + 1);
+    for (int i = 0; i < localName.length(); i++) {
+      char c = localName.charAt(i);
+      boolean validCharacter = (i == 0) ? (Character.isLetter(c) || c == '_') : (Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.');
+      // An existing _xHHHH_ sequence is encoded too, to not be decoded
+      if (validCharacter && !(c == '_' && isEncodedCharacter(localName, i))) {
+        encodedName.append(c);
+      } else {
+        encodedName.append("_x").append(String.format("%04X", (int) c)).append('_');
+      }
+    }
+    return encodedName.toString();
+  }
+
+  private static boolean isEncodedCharacter(String name, int index) {
+    if (!name.startsWith("_x", index) || index + 7 > name.length() || name.charAt(index + 6) != '_') {
+      return false;
+    }
+    for (int i = index + 2; i < index + 6; i++) {
+      if (Character.digit(name.charAt(i), 16) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public void updateModifiedDateOfEvent(String username, CalendarEvent event) throws Exception {
-    Node node = storage.getCalendarEventNode(username, event.getCalType(), event.getCalendarId(), event.getId());
-    modifyUpdateDate(node);
-    if (event.getOriginalReference() != null && !event.getOriginalReference().isEmpty()) {
-      Node masterNode = storage.getSession(SessionProvider.createSystemProvider()).getNodeByUUID(event.getOriginalReference());
-      modifyUpdateDate(masterNode);
+    updateModifiedDateOfEvents(username, Collections.singletonList(event));
+  }
+
+  /**
+   * 
+   * Updates modified date of events and their master events, modifications
+   * are saved once per JCR session instead of once per node.
+   * 
+   * @param username
+   * @param events
+   * @throws Exception
+   */
+  public void updateModifiedDateOfEvents(String username, List<CalendarEvent> events) throws Exception {
+    Set<Session> modifiedSessions = new LinkedHashSet<Session>();
+    for (CalendarEvent event : events) {
+      Node node = storage.getCalendarEventNode(username, event.getCalType(), event.getCalendarId(), event.getId());
+      modifyUpdateDate(node);
+      modifiedSessions.add(node.getSession());
+      if (event.getOriginalReference() != null && !event.getOriginalReference().isEmpty()) {
+        Node masterNode = getNodeByUUID(event.getOriginalReference());
+        if (masterNode != null) {
+          modifyUpdateDate(masterNode);
+          modifiedSessions.add(masterNode.getSession());
+        }
+      }
+    }
+    for (Session session : modifiedSessions) {
+      session.save();
+    }
+  }
+
+  private Node getNodeByUUID(String uuid) throws Exception {
+    // Reuse the system session of the current thread instead of opening a new
+    // one that is never closed
+    SessionProvider sessionProvider = providerService.getSystemSessionProvider(null);
+    try {
+      return storage.getSession(sessionProvider).getNodeByUUID(uuid);
+    } catch (ItemNotFoundException e) {
+      return null;
     }
   }
 
@@ -365,10 +469,18 @@ public class ExoStorageService implements Serializable {
       node.setProperty("exo:dateCreated", new GregorianCalendar());
     }
     node.setProperty("exo:dateModified", new GregorianCalendar());
-    node.save();
   }
 
   private List<CalendarEvent> createOrUpdateEvent(Appointment appointment, String username, boolean isNew, TimeZone timeZone) throws Exception {
+    try {
+      return convertAndSaveEvent(appointment, username, isNew, timeZone);
+    } finally {
+      // Spooled attachments of unchanged or failed events never reach JCR
+      CalendarConverterService.releaseSpooledAttachments();
+    }
+  }
+
+  private List<CalendarEvent> convertAndSaveEvent(Appointment appointment, String username, boolean isNew, TimeZone timeZone) throws Exception {
     Calendar calendar = getUserCalendar(username, appointment.getParentFolderId().getUniqueId());
     if (calendar == null) {
       LOG.warn("Attempting to synchronize an event without existing associated eXo Calendar.");
@@ -395,15 +507,20 @@ public class ExoStorageService implements Serializable {
           }
         }
 
+        String oldContent = isNew ? null : CalendarConverterService.getEventContent(event);
+        CalendarConverterService.convertExchangeToExoEvent(event, appointment, username, storage, organizationService.getUserHandler(), timeZone);
+        event.setRepeatType(CalendarEvent.RP_NOREPEAT);
         if (isNew) {
           LOG.info("Create user calendar event: " + appointment.getSubject());
+          storage.saveUserEvent(username, calendar.getId(), event, isNew);
+        } else if (oldContent.equals(CalendarConverterService.getEventContent(event))) {
+          if (LOG.isTraceEnabled()) {
+            LOG.trace("User calendar event is unchanged, ignore updating: " + appointment.getSubject());
+          }
         } else {
           LOG.info("Update user calendar event: " + appointment.getSubject());
+          storage.saveUserEvent(username, calendar.getId(), event, isNew);
         }
-
-        CalendarConverterService.convertExchangeToExoEvent(event, appointment, username, storage, organizationService.getUserHandler(), timeZone);
-        event.setRepeatType(CalendarEvent.RP_NOREPEAT);
-        storage.saveUserEvent(username, calendar.getId(), event, isNew);
         correspondenceService.setCorrespondingId(username, event.getId(), appointment.getId().getUniqueId());
       }
         break;
@@ -436,6 +553,7 @@ public class ExoStorageService implements Serializable {
           }
 
           masterEvent.setCalendarId(calendar.getId());
+          String oldContent = isNew ? null : CalendarConverterService.getEventContent(masterEvent);
           CalendarConverterService.convertExchangeToExoMasterRecurringCalendarEvent(masterEvent, appointment, username, storage, organizationService.getUserHandler(), timeZone);
           if (isNew) {
             correspondenceService.setCorrespondingId(username, masterEvent.getId(), appointment.getId().getUniqueId());
@@ -444,7 +562,11 @@ public class ExoStorageService implements Serializable {
               masterEvent.setExcludeId(new String[0]);
             }
           }
-          storage.saveUserEvent(username, calendar.getId(), masterEvent, isNew);
+          if (isNew || !oldContent.equals(CalendarConverterService.getEventContent(masterEvent))) {
+            storage.saveUserEvent(username, calendar.getId(), masterEvent, isNew);
+          } else if (LOG.isTraceEnabled()) {
+            LOG.trace("Recurrent user calendar event is unchanged, ignore updating: " + appointment.getSubject());
+          }
         }
         List<CalendarEvent> exceptionalEventsToUpdate = new ArrayList<CalendarEvent>();
         List<String> occAppointmentIDs = new ArrayList<String>();
@@ -2,19 +2,23 @@ package org.exoplatform.extension.exchange.service;
 
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
-
-import javax.jcr.Node;
+import java.util.concurrent.ConcurrentHashMap;
 
 import microsoft.exchange.webservices.data.Appointment;
 import microsoft.exchange.webservices.data.BasePropertySet;
 import microsoft.exchange.webservices.data.CalendarFolder;
 import microsoft.exchange.webservices.data.ExchangeService;
+import microsoft.exchange.webservices.data.ExchangeVersion;
 import microsoft.exchange.webservices.data.FindItemsResults;
 import microsoft.exchange.webservices.data.Folder;
 import microsoft.exchange.webservices.data.FolderId;
@@ -55,28 +59,92 @@ public class IntegrationService {
 
   private final static Log LOG = ExoLogger.getLogger(IntegrationService.class);
 
-  private static final String USER_EXCHANGE_HANDLED_ATTRIBUTE = "exchange.check.date";
-  private static final String USER_EXO_HANDLED_ATTRIBUTE = "exo.check.date";
   private static final Map<String, IntegrationService> instances = new HashMap<String, IntegrationService>();
 
+  // Maximum number of items loaded by a full synchronization of a folder
+  private static final int FULL_SYNCHRONIZATION_ITEMS_LIMIT = 1000;
+
+  // Delay after which Exchange calendar folders are listed again
+  private static final long EXCHANGE_CALENDAR_FOLDERS_TTL = 5 * 60 * 1000L;
+
   private final String username;
   private final ExchangeService service;
   private final ExoStorageService exoStorageService;
   private final ExchangeStorageService exchangeStorageService;
   private final CorrespondenceService correspondenceService;
+  private final SynchronizationStateService synchronizationStateService;
+  private final OutboxService outboxService;
   private final OrganizationService organizationService;
   private final CalendarService calendarService;
 
+  // Used instead of 'service' when Exchange is accessed through impersonation
+  private final ExchangeServicePool servicePool;
+  private final String exchangeUsername;
+  private ExchangeService leasedService;
+  private ExchangeService lastLeasedService;
+  // Service of the pull subscription of the user
+  private ExchangeService subscriptionService;
+
+  // Master recurrent event IDs by original UUID, cleared when
+  // synchronization stops
+  private final Map<String, String> masterIdsByOriginalUUID = new ConcurrentHashMap<String, String>();
+
+  // User eXo calendar timezone, reset when the calendar setting is modified
+  private volatile TimeZone userCalendarTimeZone;
+
+  // Last listing of Exchange calendar folders, served to the REST service
+  private volatile ExchangeCalendarFolders exchangeCalendarFolders;
+
+  // Service listing Exchange calendar folders when impersonation isn't used,
+  // kept so its authenticated HTTP connections are reused between listings
+  private ExchangeService foldersListingService;
+
+  // Listings are serialized since EWS services aren't thread safe
+  private final Object foldersListingLock = new Object();
+
+  // Exchange service used by a parallel folder synchronization worker
+  private final ThreadLocal<ExchangeService> workerService = new ThreadLocal<ExchangeService>();
+
+  // Services of parallel folder synchronization workers released by them,
+  // reused between synchronizations when impersonation isn't used
+  private final LinkedList<ExchangeService> idleWorkerServices = new LinkedList<ExchangeService>();
+
   private boolean synchIsCurrentlyRunning = false;
 
+  // True while an Exchange service is leased to start the synchronization
+  private boolean synchIsStarting = false;
+
+  // Thread that started the running synchronization, its eXo modifications
+  // are not pushed back to Exchange
+  private Thread synchronizationThread;
+
+  public IntegrationService(OrganizationService organizationService, CalendarService calendarService, ExoStorageService exoStorageService, ExchangeStorageService exchangeStorageService,
+      CorrespondenceService correspondenceService, SynchronizationStateService synchronizationStateService,
+      OutboxService outboxService, ExchangeService service, String username) {
+    this(organizationService, calendarService, exoStorageService, exchangeStorageService, correspondenceService, synchronizationStateService, outboxService, service, null, null,
+        username);
+  }
+
   public IntegrationService(OrganizationService organizationService, CalendarService calendarService, ExoStorageService exoStorageService, ExchangeStorageService exchangeStorageService,
-      CorrespondenceService correspondenceService, ExchangeService service, String username) {
+      CorrespondenceService correspondenceService, SynchronizationStateService synchronizationStateService,
+      OutboxService outboxService, ExchangeServicePool servicePool, String exchangeUsername, String username) {
+    this(organizationService, calendarService, exoStorageService, exchangeStorageService, correspondenceService, synchronizationStateService, outboxService, null, servicePool,
+        exchangeUsername, username);
+  }
+
+  private IntegrationService(OrganizationService organizationService, CalendarService calendarService, ExoStorageService exoStorageService, ExchangeStorageService exchangeStorageService,
+      CorrespondenceService correspondenceService, SynchronizationStateService synchronizationStateService, OutboxService outboxService, ExchangeService service,
+      ExchangeServicePool servicePool, String exchangeUsername, String username) {
     this.organizationService = organizationService;
     this.calendarService = calendarService;
     this.exoStorageService = exoStorageService;
     this.exchangeStorageService = exchangeStorageService;
     this.correspondenceService = correspondenceService;
+    this.synchronizationStateService = synchronizationStateService;
+    this.outboxService = outboxService;
     this.service = service;
+    this.servicePool = servicePool;
+    this.exchangeUsername = exchangeUsername;
     this.username = username;
 
     // Set corresponding service to each username.
@@ -100,7 +168,7 @@ public class IntegrationService {
    * @throws Exception
    */
   public CalendarFolder getExchangeCalendar(FolderId folderId) throws Exception {
-    return exchangeStorageService.getExchangeCalendar(service, folderId);
+    return exchangeStorageService.getExchangeCalendar(getService(), folderId);
   }
 
   /**
@@ -114,15 +182,33 @@ public class IntegrationService {
    * @return List of event IDs
    */
   public List<String> synchronizeFullCalendar(FolderId folderId) throws Exception {
+    return synchronizeFullCalendar(folderId, null);
+  }
+
+  /**
+   * 
+   * Synchronize Exchange Calendar identified by 'folderId' with eXo Calendar,
+   * reporting processed items to the job.
+   * 
+   * @param folderId
+   * @param job
+   *          job requested by the user, can be null. The synchronization stops
+   *          when the job is cancelled or stopped.
+   * @throws Exception
+   * @return List of event IDs
+   */
+  public List<String> synchronizeFullCalendar(FolderId folderId, SynchronizationJob job) throws Exception {
     List<String> updatedExoEventIds = new ArrayList<String>();
-    CalendarFolder folder = exchangeStorageService.getExchangeCalendar(service, folderId);
+    CalendarFolder folder = exchangeStorageService.getExchangeCalendar(getService(), folderId);
 
     // Create Calendar if not present
     exoStorageService.getOrCreateUserCalendar(username, folder);
 
     Iterable<Item> items = searchAllItems(folderId);
-    synchronizeAllExchangeAppointments(updatedExoEventIds, items);
-    deleteExoEventsOutOfSynchronization(folderId);
+    synchronizeAllExchangeAppointments(updatedExoEventIds, items, job);
+    if (job == null || !job.isStopRequested()) {
+      deleteExoEventsOutOfSynchronization(folderId);
+    }
 
     return updatedExoEventIds;
   }
@@ -134,21 +220,25 @@ public class IntegrationService {
    * 
    * @param folderId
    * @param lastSyncDate
-   * @param updatedExoEventIDs
+   * @param context
+   *          state of the synchronization cycle
    * @param diffTimeZone
    * @throws Exception
    */
-  public void synchronizeModificationsOfCalendar(FolderId folderId, Date lastSyncDate, List<String> updatedExoEventIDs, int diffTimeZone) throws Exception {
+  public void synchronizeModificationsOfCalendar(FolderId folderId, Date lastSyncDate, SynchronizationContext context, int diffTimeZone) throws Exception {
     // Serach modified eXo Calendar events since this date, this is used to
     // force synchronization
     Date exoLastSyncDate = getUserExoLastCheckDate();
     if (exoLastSyncDate == null || exoLastSyncDate.before(lastSyncDate)) {
       exoLastSyncDate = lastSyncDate;
     }
+    if (context.getTimeZone() == null) {
+      context.setTimeZone(getUserExoCalenarTimeZoneSetting());
+    }
 
-    synchronizeAppointmentsByModificationDate(folderId, lastSyncDate, updatedExoEventIDs, diffTimeZone);
-    synchronizeNewlyExoEvents(folderId, updatedExoEventIDs, exoLastSyncDate);
-    synchronizeExoEventsByModificationDate(folderId, updatedExoEventIDs, exoLastSyncDate);
+    synchronizeAppointmentsByModificationDate(folderId, lastSyncDate, context, diffTimeZone);
+    synchronizeNewlyExoEvents(folderId, context, exoLastSyncDate);
+    synchronizeExoEventsByModificationDate(folderId, context, exoLastSyncDate);
   }
 
   /**
@@ -159,7 +249,83 @@ public class IntegrationService {
    * @throws Exception
    */
   public List<FolderId> getAllExchangeCalendars() throws Exception {
-    return exchangeStorageService.getAllExchangeCalendars(service);
+    return exchangeStorageService.getAllExchangeCalendars(getService());
+  }
+
+  /**
+   * 
+   * Gets Exchange calendar folders names from the last listing, without
+   * requesting Exchange.
+   * 
+   * @return display names by folder id, null if the folders weren't listed
+   */
+  public Map<String, String> getExchangeCalendarFolderNames() {
+    ExchangeCalendarFolders folders = exchangeCalendarFolders;
+    return folders == null ? null : folders.namesById;
+  }
+
+  /**
+   * 
+   * @return true if the Exchange calendar folders listing is missing, too old
+   *         or invalidated by a folder event
+   */
+  public boolean isExchangeCalendarFoldersExpired() {
+    ExchangeCalendarFolders folders = exchangeCalendarFolders;
+    return folders == null || folders.invalidated || (System.currentTimeMillis() - folders.listingTime) > EXCHANGE_CALENDAR_FOLDERS_TTL;
+  }
+
+  /**
+   * 
+   * Lists Exchange calendar folders again. The listing uses its own Exchange
+   * service, so it doesn't mark the synchronization as started and doesn't
+   * share the service of a running synchronization. With impersonation, the
+   * service is leased from the pool if one is idle, otherwise the listing
+   * service of the user is created once and reused.
+   * 
+   * @return true if the folders were listed, false if no Exchange service is
+   *         available
+   * @throws Exception
+   */
+  public boolean refreshExchangeCalendarFolders() throws Exception {
+    if (servicePool != null) {
+      ExchangeService pooledService = servicePool.tryAcquire(exchangeUsername);
+      if (pooledService == null) {
+        return false;
+      }
+      try {
+        listExchangeCalendarFolders(pooledService);
+      } finally {
+        servicePool.release(pooledService);
+      }
+      return true;
+    }
+    synchronized (foldersListingLock) {
+      if (foldersListingService == null) {
+        foldersListingService = newUserService();
+      }
+      listExchangeCalendarFolders(foldersListingService);
+    }
+    return true;
+  }
+
+  private void listExchangeCalendarFolders(ExchangeService foldersService) throws Exception {
+    Map<String, String> namesById = new LinkedHashMap<String, String>();
+    for (Folder folder : exchangeStorageService.getAllExchangeCalendarFolders(foldersService)) {
+      namesById.put(folder.getId().getUniqueId(), folder.getDisplayName());
+    }
+    exchangeCalendarFolders = new ExchangeCalendarFolders(namesById);
+  }
+
+  /**
+   * 
+   * Marks the Exchange calendar folders listing as expired, when folders are
+   * created, modified or deleted on Exchange.
+   */
+  public void invalidateExchangeCalendarFolders() {
+    ExchangeCalendarFolders folders = exchangeCalendarFolders;
+    if (folders != null) {
+      folders.invalidated = true;
+    }
   }
 
   /**
@@ -196,7 +362,7 @@ public class IntegrationService {
   public List<CalendarEvent> createOrUpdateOrDelete(ItemEvent itemEvent) throws Exception {
     List<CalendarEvent> updatedEvents = null;
 
-    Appointment appointment = exchangeStorageService.getAppointment(service, itemEvent.getItemId());
+    Appointment appointment = exchangeStorageService.getAppointment(getService(), itemEvent.getItemId());
     if (appointment == null) {
       exoStorageService.deleteEventByAppointmentID(itemEvent.getItemId().getUniqueId(), username);
     } else {
@@ -206,6 +372,7 @@ public class IntegrationService {
       } else {
         updatedEvents = exoStorageService.updateEvent((Appointment) appointment, username, getUserExoCalenarTimeZoneSetting());
       }
+      setFingerprints(appointment, CalendarConverterService.getAppointmentFingerprint(appointment), updatedEvents);
     }
 
     return updatedEvents;
@@ -224,32 +391,52 @@ public class IntegrationService {
   }
 
   /**
+   * 
+   * Pushes to Exchange the modifications of an eXo event, if its calendar is
+   * synchronized and its content was modified since last synchronization.
    * 
    * @param eventId
    * @throws Exception
    */
-  public void updateOrCreateExchangeCalendarEvent(Node eventNode) throws Exception {
-    CalendarEvent event = exoStorageService.getExoEventByNode(eventNode);
-    if (isCalendarSynchronizedWithExchange(event.getCalendarId())) {
-      List<CalendarEvent> calendarEventsToUpdateModifiedTime = new ArrayList<CalendarEvent>();
-      updateOrCreateExchangeCalendarEvent(event, calendarEventsToUpdateModifiedTime);
-      if (!calendarEventsToUpdateModifiedTime.isEmpty()) {
-        for (CalendarEvent calendarEvent : calendarEventsToUpdateModifiedTime) {
-          // This is done to not have a cyclic updates between eXo and Exchange
-          exoStorageService.updateModifiedDateOfEvent(username, calendarEvent);
-        }
+  public void updateOrCreateExchangeCalendarEvent(String eventId) throws Exception {
+    CalendarEvent event = ((CalendarServiceImpl) calendarService).getDataStorage().getEvent(username, eventId);
+    if (event == null || !isCalendarSynchronizedWithExchange(event.getCalendarId())) {
+      return;
+    }
+    if (CalendarConverterService.getEventFingerprint(event).equals(correspondenceService.getFingerprint(username, eventId))) {
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("eXo event content is unchanged since last synchronization, ignore: " + event.getSummary());
       }
+      return;
     }
+    List<CalendarEvent> calendarEventsToUpdateModifiedTime = new ArrayList<CalendarEvent>();
+    updateOrCreateExchangeCalendarEvent(event, calendarEventsToUpdateModifiedTime);
+    calendarEventsToUpdateModifiedTime.add(event);
+    // This is done to not have a cyclic updates between eXo and Exchange
+    exoStorageService.updateModifiedDateOfEvents(username, calendarEventsToUpdateModifiedTime);
   }
 
   /**
+   * 
+   * Adds a modification of an eXo event to push to Exchange asynchronously.
    * 
    * @param eventId
    * @throws Exception
    */
-  public boolean updateOrCreateExchangeCalendarEvent(String eventId) throws Exception {
-    CalendarEvent event = ((CalendarServiceImpl) calendarService).getDataStorage().getEvent(username, eventId);
-    return updateOrCreateExchangeCalendarEvent(event);
+  public void enqueueExchangeCalendarEventUpdate(String eventId) throws Exception {
+    outboxService.enqueueUpdate(username, eventId);
+  }
+
+  /**
+   * 
+   * Adds a deletion of an eXo event to push to Exchange asynchronously.
+   * 
+   * @param eventId
+   * @param calendarId
+   * @throws Exception
+   */
+  public void enqueueExchangeCalendarEventDeletion(String eventId, String calendarId) throws Exception {
+    outboxService.enqueueDeletion(username, eventId, calendarId);
   }
 
   /**
@@ -260,12 +447,16 @@ public class IntegrationService {
   public boolean updateOrCreateExchangeCalendarEvent(CalendarEvent event, List<CalendarEvent> eventsToUpdate) throws Exception {
     String exoMasterId = null;
     if (event.getIsExceptionOccurrence() != null && event.getIsExceptionOccurrence()) {
-      exoMasterId = exoStorageService.getExoEventMasterRecurenceByOriginalUUID(event.getOriginalReference());
+      exoMasterId = getExoEventMasterRecurenceByOriginalUUID(event.getOriginalReference());
       if (exoMasterId == null) {
         LOG.error("No master Id was found for occurence: " + event.getSummary() + " with recurrenceId = " + event.getRecurrenceId() + ". The event will not be updated.");
       }
     }
-    return exchangeStorageService.updateOrCreateExchangeAppointment(username, service, event, exoMasterId, getUserExoCalenarTimeZoneSetting(), eventsToUpdate);
+    boolean deleteEvent = exchangeStorageService.updateOrCreateExchangeAppointment(username, getService(), event, exoMasterId, getUserExoCalenarTimeZoneSetting(), eventsToUpdate);
+    if (!deleteEvent && correspondenceService.getCorrespondingId(username, event.getId()) != null) {
+      correspondenceService.setFingerprint(username, event.getId(), CalendarConverterService.getEventFingerprint(event));
+    }
+    return deleteEvent;
   }
 
   /**
@@ -283,7 +474,7 @@ public class IntegrationService {
    * @throws Exception
    */
   public void deleteExchangeCalendarEvent(String eventId, String calendarId) throws Exception {
-    exchangeStorageService.deleteAppointmentByExoEventId(username, service, eventId, calendarId);
+    exchangeStorageService.deleteAppointmentByExoEventId(username, getService(), eventId, calendarId);
   }
 
   /**
@@ -296,7 +487,7 @@ public class IntegrationService {
    * @throws Exception
    */
   public boolean deleteExoCalendar(FolderId folderId) throws Exception {
-    Folder folder = exchangeStorageService.getExchangeCalendar(service, folderId);
+    Folder folder = exchangeStorageService.getExchangeCalendar(getService(), folderId);
     if (folder != null) {
       LOG.info("Folder was found, but event seems saying that it was deleted.");
       return false;
@@ -310,12 +501,16 @@ public class IntegrationService {
    * @throws Exception
    */
   public void deleteExchangeCalendar(String calendarId) throws Exception {
-    exchangeStorageService.deleteExchangeFolderByCalenarId(username, service, calendarId);
+    exchangeStorageService.deleteExchangeFolderByCalenarId(username, getService(), calendarId);
   }
 
-  public void removeInstance() {
+  public synchronized void removeInstance() {
     LOG.info("Stop Exchange Integration Service for user: " + username);
     instances.remove(username);
+    // A running synchronization releases its service when it stops
+    if (!synchIsCurrentlyRunning) {
+      releaseService();
+    }
   }
 
   public List<String> synchronizeExchangeFolderState(List<FolderId> calendarFolderIds, boolean synchronizeAllExchangeFolders, boolean deleteExoCalendarOnUnsync) throws Exception {
@@ -328,7 +523,7 @@ public class IntegrationService {
     List<String> updatedCalendarEventIds = null;
     // synchronize added Folders
     if (synchronizeAllExchangeFolders) {
-      List<FolderId> folderIds = exchangeStorageService.getAllExchangeCalendars(service);
+      List<FolderId> folderIds = exchangeStorageService.getAllExchangeCalendars(getService());
       for (FolderId folderId : folderIds) {
         // Test if not already fully synchronized
         if (!calendarFolderIds.contains(folderId)) {
@@ -380,11 +575,11 @@ public class IntegrationService {
   }
 
   private void deleteExoCalendarOutOfSync(boolean deleteExoCalendarOnUnsync, Iterator<FolderId> iterator, FolderId folderId) throws Exception {
-    Folder folder = exchangeStorageService.getExchangeCalendar(service, folderId);
+    Folder folder = exchangeStorageService.getExchangeCalendar(getService(), folderId);
     if (folder == null) {
       // Test if the connection is ok, else the exception is thrown because of
       // interrupted connection
-      folder = exchangeStorageService.getExchangeCalendar(service, FolderId.getFolderIdFromWellKnownFolderName(WellKnownFolderName.Calendar));
+      folder = exchangeStorageService.getExchangeCalendar(getService(), FolderId.getFolderIdFromWellKnownFolderName(WellKnownFolderName.Calendar));
 
       if (folder != null) {
         Calendar calendar = exoStorageService.getUserCalendar(username, folderId.getUniqueId());
@@ -411,6 +606,18 @@ public class IntegrationService {
     return folderIds;
   }
 
+  /**
+   * 
+   * @param folderId
+   * @return number of items that a full synchronization of the folder will
+   *         process
+   * @throws Exception
+   */
+  public int getFullSynchronizationItemsCount(FolderId folderId) throws Exception {
+    CalendarFolder folder = exchangeStorageService.getExchangeCalendar(getService(), folderId);
+    return folder == null ? 0 : Math.min(folder.getTotalCount(), FULL_SYNCHRONIZATION_ITEMS_LIMIT);
+  }
+
   public void addFolderToSynchronization(String folderIdString) throws Exception {
     String calendarId = CalendarConverterService.getCalendarId(folderIdString);
     correspondenceService.setCorrespondingId(username, calendarId, folderIdString);
@@ -420,18 +627,112 @@ public class IntegrationService {
     correspondenceService.deleteCorrespondingId(username, folderIdString);
   }
 
-  public synchronized void setSynchronizationStarted() {
-    synchIsCurrentlyRunning = true;
+  /**
+   * 
+   * Synchronizes exactly the given Exchange folders: adds the missing ones and
+   * removes the others. The correspondences are saved once for all folders.
+   * 
+   * @param folderIds
+   *          Exchange folders ids to synchronize
+   * @return ids of added folders
+   * @throws Exception
+   */
+  public List<String> setSynchronizedFolders(Collection<String> folderIds) throws Exception {
+    List<String> addedFolderIds = new ArrayList<String>();
+    List<String> synchronizedFolderIds = correspondenceService.getSynchronizedExchangeFolderIds(username);
+    for (String folderIdString : synchronizedFolderIds) {
+      if (!folderIds.contains(folderIdString)) {
+        deleteFolderFromSynchronization(folderIdString);
+      }
+    }
+    for (String folderIdString : folderIds) {
+      if (!synchronizedFolderIds.contains(folderIdString) && !addedFolderIds.contains(folderIdString)) {
+        addFolderToSynchronization(folderIdString);
+        addedFolderIds.add(folderIdString);
+      }
+    }
+    return addedFolderIds;
+  }
+
+  /**
+   * Marks the synchronization as started. When impersonation is used, an
+   * Exchange service is leased from the pool until the synchronization stops.
+   *
+   * @throws IllegalStateException
+   *           if the synchronization is already started or if no Exchange
+   *           service is available
+   * @throws InterruptedException
+   */
+  public void setSynchronizationStarted() throws InterruptedException {
+    if (!trySetSynchronizationStarted()) {
+      throw new IllegalStateException("Exchange synchronization is already started or no Exchange service is available for user '" + username + "'.");
+    }
   }
 
   public synchronized void setSynchronizationStopped() {
     synchIsCurrentlyRunning = false;
+    synchronizationThread = null;
+    masterIdsByOriginalUUID.clear();
+    CalendarConverterService.clearEventCategoriesCache(username);
+    releaseService();
+  }
+
+  /**
+   * Marks the synchronization as started if it isn't already running. When
+   * impersonation is used, the Exchange service is leased without holding the
+   * lock of this instance, so {@link #isSynchronizationStarted()} doesn't wait
+   * for the pool, and the synchronization is marked as started only if the
+   * lease succeeds.
+   *
+   * @return true if the synchronization was marked as started, false if it's
+   *         already running or if no Exchange service is available
+   * @throws InterruptedException
+   */
+  public boolean trySetSynchronizationStarted() throws InterruptedException {
+    ExchangeService preferredService = null;
+    synchronized (this) {
+      if (synchIsCurrentlyRunning || synchIsStarting) {
+        return false;
+      }
+      if (servicePool == null) {
+        synchIsCurrentlyRunning = true;
+        synchronizationThread = Thread.currentThread();
+        return true;
+      }
+      synchIsStarting = true;
+      preferredService = lastLeasedService;
+    }
+    ExchangeService acquiredService = null;
+    try {
+      acquiredService = servicePool.acquire(exchangeUsername, preferredService);
+    } finally {
+      synchronized (this) {
+        synchIsStarting = false;
+        if (acquiredService != null) {
+          leasedService = acquiredService;
+          lastLeasedService = acquiredService;
+          synchIsCurrentlyRunning = true;
+          synchronizationThread = Thread.currentThread();
+        }
+      }
+    }
+    return acquiredService != null;
   }
 
   public synchronized boolean isSynchronizationStarted() {
     return synchIsCurrentlyRunning;
   }
 
+  /**
+   * 
+   * @return true if the current thread is the one running the synchronization
+   *         of the user or one of its folder synchronization workers, so eXo
+   *         modifications made by it don't have to be pushed to Exchange
+   */
+  public synchronized boolean isSynchronizationThread() {
+    return synchIsCurrentlyRunning && (synchronizationThread == Thread.currentThread() || workerService.get() != null);
+  }
+
   private void deleteExoEventsOutOfSynchronization(FolderId folderId) throws Exception {
     List<CalendarEvent> events = exoStorageService.getUserCalendarEvents(username, folderId.getUniqueId());
     for (CalendarEvent calendarEvent : events) {
@@ -439,7 +740,7 @@ public class IntegrationService {
         exoStorageService.deleteEvent(username, calendarEvent);
       } else {
         String itemId = correspondenceService.getCorrespondingId(username, calendarEvent.getId());
-        Appointment appointment = exchangeStorageService.getAppointment(service, itemId);
+        Appointment appointment = exchangeStorageService.getAppointment(getService(), itemId);
         if (appointment == null) {
           exoStorageService.deleteEvent(username, calendarEvent);
         }
@@ -447,10 +748,18 @@ public class IntegrationService {
     }
   }
 
-  private void synchronizeAllExchangeAppointments(List<String> eventIds, Iterable<Item> items) throws Exception, ServiceLocalException {
+  private void synchronizeAllExchangeAppointments(List<String> eventIds, Iterable<Item> items, SynchronizationJob job) throws Exception, ServiceLocalException {
+    TimeZone timeZone = getUserExoCalenarTimeZoneSetting();
     for (Item item : items) {
+      if (job != null) {
+        if (job.isStopRequested()) {
+          return;
+        }
+        job.itemProcessed();
+      }
       if (item instanceof Appointment) {
-        List<CalendarEvent> updatedEvents = exoStorageService.createOrUpdateEvent((Appointment) item, username, getUserExoCalenarTimeZoneSetting());
+        List<CalendarEvent> updatedEvents = exoStorageService.createOrUpdateEvent((Appointment) item, username, timeZone);
+        setFingerprints(item, CalendarConverterService.getAppointmentFingerprint((Appointment) item), updatedEvents);
         if (updatedEvents != null && !updatedEvents.isEmpty()) {
           for (CalendarEvent calendarEvent : updatedEvents) {
             eventIds.add(calendarEvent.getId());
@@ -471,19 +780,7 @@ public class IntegrationService {
    * @throws Exception
    */
   public void setUserLastCheckDate(long time) throws Exception {
-    if (organizationService instanceof ComponentRequestLifecycle) {
-      ((ComponentRequestLifecycle) organizationService).startRequest(PortalContainer.getInstance());
-    }
-    UserProfile userProfile = organizationService.getUserProfileHandler().findUserProfileByName(username);
-    userProfile.setAttribute(USER_EXCHANGE_HANDLED_ATTRIBUTE, "" + time);
-    long savedTime = userProfile.getAttribute(USER_EXO_HANDLED_ATTRIBUTE) == null ? 0 : Long.valueOf(userProfile.getAttribute(USER_EXO_HANDLED_ATTRIBUTE));
-    if (time > savedTime) {
-      userProfile.setAttribute(USER_EXO_HANDLED_ATTRIBUTE, "" + time);
-    }
-    organizationService.getUserProfileHandler().saveUserProfile(userProfile, false);
-    if (organizationService instanceof ComponentRequestLifecycle) {
-      ((ComponentRequestLifecycle) organizationService).endRequest(PortalContainer.getInstance());
-    }
+    synchronizationStateService.setLastCheckDate(username, time);
   }
 
   /**
@@ -494,19 +791,7 @@ public class IntegrationService {
    * @throws Exception
    */
   public Date getUserLastCheckDate() throws Exception {
-    if (organizationService instanceof ComponentRequestLifecycle) {
-      ((ComponentRequestLifecycle) organizationService).startRequest(PortalContainer.getInstance());
-    }
-    UserProfile userProfile = organizationService.getUserProfileHandler().findUserProfileByName(username);
-    long time = userProfile.getAttribute(USER_EXCHANGE_HANDLED_ATTRIBUTE) == null ? 0 : Long.valueOf(userProfile.getAttribute(USER_EXCHANGE_HANDLED_ATTRIBUTE));
-    Date lastSyncDate = null;
-    if (time > 0) {
-      lastSyncDate = new Date(time);
-    }
-    if (organizationService instanceof ComponentRequestLifecycle) {
-      ((ComponentRequestLifecycle) organizationService).endRequest(PortalContainer.getInstance());
-    }
-    return lastSyncDate;
+    return synchronizationStateService.getLastCheckDate(username);
   }
 
   /**
@@ -518,22 +803,7 @@ public class IntegrationService {
    * @throws Exception
    */
   public void setUserExoLastCheckDate(long time) throws Exception {
-    if (organizationService instanceof ComponentRequestLifecycle) {
-      ((ComponentRequestLifecycle) organizationService).startRequest(PortalContainer.getInstance());
-    }
-    UserProfile userProfile = organizationService.getUserProfileHandler().findUserProfileByName(username);
-    long savedTime = userProfile.getAttribute(USER_EXO_HANDLED_ATTRIBUTE) == null ? 0 : Long.valueOf(userProfile.getAttribute(USER_EXO_HANDLED_ATTRIBUTE));
-    if (savedTime <= 0) {
-      if (LOG.isTraceEnabled()) {
-        LOG.trace("User '" + username + "' exo last check time was not set before, may be the synhronization was not run before or an error occured in the meantime.");
-      }
-    } else {
-      userProfile.setAttribute(USER_EXO_HANDLED_ATTRIBUTE, "" + time);
-      organizationService.getUserProfileHandler().saveUserProfile(userProfile, false);
-    }
-    if (organizationService instanceof ComponentRequestLifecycle) {
-      ((ComponentRequestLifecycle) organizationService).endRequest(PortalContainer.getInstance());
-    }
+    synchronizationStateService.setExoLastCheckDate(username, time);
   }
 
   /**
@@ -544,19 +814,7 @@ public class IntegrationService {
    * @throws Exception
    */
   public Date getUserExoLastCheckDate() throws Exception {
-    if (organizationService instanceof ComponentRequestLifecycle) {
-      ((ComponentRequestLifecycle) organizationService).startRequest(PortalContainer.getInstance());
-    }
-    UserProfile userProfile = organizationService.getUserProfileHandler().findUserProfileByName(username);
-    long time = userProfile.getAttribute(USER_EXO_HANDLED_ATTRIBUTE) == null ? 0 : Long.valueOf(userProfile.getAttribute(USER_EXO_HANDLED_ATTRIBUTE));
-    Date lastSyncDate = null;
-    if (time > 0) {
-      lastSyncDate = new Date(time);
-    }
-    if (organizationService instanceof ComponentRequestLifecycle) {
-      ((ComponentRequestLifecycle) organizationService).endRequest(PortalContainer.getInstance());
-    }
-    return lastSyncDate;
+    return synchronizationStateService.getExoLastCheckDate(username);
   }
 
   /**
@@ -623,74 +881,217 @@ public class IntegrationService {
     }
   }
 
-  public ExchangeService getService() {
-    return service;
+  /**
+   *
+   * @return the user dedicated Exchange service, or the service leased from
+   *         the impersonation pool while synchronization is started.
+   */
+  public synchronized ExchangeService getService() {
+    ExchangeService currentWorkerService = workerService.get();
+    if (currentWorkerService != null) {
+      return currentWorkerService;
+    }
+    if (servicePool == null) {
+      return service;
+    }
+    if (leasedService == null) {
+      throw new IllegalStateException("No Exchange service is leased for user '" + username + "', the synchronization have to be started before using it.");
+    }
+    return leasedService;
+  }
+
+  /**
+   *
+   * @return the service used by the pull subscription of the user. With
+   *         impersonation, it's a service dedicated to the user, since pooled
+   *         services are leased to other users between synchronizations.
+   * @throws Exception
+   */
+  public synchronized ExchangeService getSubscriptionService() throws Exception {
+    if (servicePool == null) {
+      return service;
+    }
+    if (subscriptionService == null) {
+      subscriptionService = servicePool.newDedicatedService(exchangeUsername);
+    }
+    return subscriptionService;
+  }
+
+  /**
+   *
+   * Gets an Exchange service for a parallel folder synchronization worker. EWS
+   * services are not safe for concurrent requests, so each parallel worker
+   * have to use its own service. With impersonation, the service is leased
+   * from the pool if one is idle, so workers don't exceed the pool size.
+   * Otherwise, a service released by a previous worker is reused, so its
+   * authenticated HTTP connections are kept between synchronizations, or a
+   * service is created with the user credentials. Only one synchronization of
+   * the user runs at a time, so at most 'exchange.folder.synchronization.threads - 1'
+   * services are created for the user.
+   *
+   * @return the service to release with
+   *         {@link #releaseWorkerService(ExchangeService)}, null if no
+   *         service is available
+   */
+  public ExchangeService acquireWorkerService() {
+    if (servicePool != null) {
+      return servicePool.tryAcquire(exchangeUsername);
+    }
+    synchronized (idleWorkerServices) {
+      ExchangeService idleService = idleWorkerServices.poll();
+      if (idleService != null) {
+        return idleService;
+      }
+    }
+    return newUserService();
+  }
+
+  // Creates a service with the same settings and credentials as the user one
+  private ExchangeService newUserService() {
+    ExchangeService newService = new ExchangeService(ExchangeVersion.Exchange2010_SP2, TimeZone.getDefault());
+    newService.setTimeout(service.getTimeout());
+    newService.setCredentials(service.getCredentials());
+    newService.setUrl(service.getUrl());
+    return newService;
+  }
+
+  /**
+   *
+   * Releases the service of a parallel folder synchronization worker.
+   *
+   * @param workerService
+   */
+  public void releaseWorkerService(ExchangeService workerService) {
+    if (servicePool != null) {
+      servicePool.release(workerService);
+    } else if (workerService != null) {
+      synchronized (idleWorkerServices) {
+        idleWorkerServices.push(workerService);
+      }
+    }
+  }
+
+  /**
+   * Sets the Exchange service to use in current thread, null to use the user
+   * one.
+   *
+   * @param service
+   */
+  public void setWorkerService(ExchangeService service) {
+    if (service == null) {
+      workerService.remove();
+    } else {
+      workerService.set(service);
+    }
+  }
+
+  private synchronized void releaseService() {
+    if (leasedService != null) {
+      servicePool.release(leasedService);
+      leasedService = null;
+    }
   }
 
   /**
-   * This method returns User exo calendar TimeZone settings. This have to be
-   * called each synchronization, the timeZone may be changed from call to
-   * another.
+   * This method returns User exo calendar TimeZone settings. The setting is
+   * read once and kept until it's modified, see
+   * {@link #invalidateUserCalendarTimeZone()}.
    * 
    * @return User exo calendar TimeZone settings
    */
-  private TimeZone getUserExoCalenarTimeZoneSetting() {
+  public TimeZone getUserExoCalenarTimeZoneSetting() {
+    TimeZone timeZone = userCalendarTimeZone;
+    if (timeZone != null) {
+      return timeZone;
+    }
     try {
       CalendarSetting calendarSetting = calendarService.getCalendarSetting(username);
-      return TimeZone.getTimeZone(calendarSetting.getTimeZone());
+      timeZone = TimeZone.getTimeZone(calendarSetting.getTimeZone());
+      userCalendarTimeZone = timeZone;
+      return timeZone;
     } catch (Exception e) {
       LOG.error("Error while getting user '" + username + "'Calendar TimeZone setting, use default, this may cause some inconsistance.");
       return TimeZone.getDefault();
     }
   }
 
-  private void synchronizeExoEventsByModificationDate(FolderId folderId, List<String> updatedExoEventIDs, Date exoLastSyncDate) throws Exception {
+  /**
+   * 
+   * Resets the user calendar timezone, it will be read again from the calendar
+   * setting on next use.
+   */
+  public void invalidateUserCalendarTimeZone() {
+    userCalendarTimeZone = null;
+  }
+
+  private String getExoEventMasterRecurenceByOriginalUUID(String uuid) throws Exception {
+    if (uuid == null || uuid.isEmpty()) {
+      return null;
+    }
+    String exoMasterId = masterIdsByOriginalUUID.get(uuid);
+    if (exoMasterId == null) {
+      exoMasterId = exoStorageService.getExoEventMasterRecurenceByOriginalUUID(uuid);
+      // Empty value is used to not search again a missing master event
+      masterIdsByOriginalUUID.put(uuid, exoMasterId == null ? "" : exoMasterId);
+    }
+    return exoMasterId == null || exoMasterId.isEmpty() ? null : exoMasterId;
+  }
+
+  private void synchronizeExoEventsByModificationDate(FolderId folderId, SynchronizationContext context, Date exoLastSyncDate) throws Exception {
     List<CalendarEvent> modifiedCalendarEvents = searchCalendarEventsModifiedSince(getUserCalendarByExchangeFolderId(folderId), exoLastSyncDate);
     for (CalendarEvent calendarEvent : modifiedCalendarEvents) {
       // If modified with synchronization, ignore
-      if (updatedExoEventIDs.contains(calendarEvent.getId())) {
+      if (context.isEventUpdated(calendarEvent.getId())) {
+        continue;
+      }
+      // If the content didn't change since last synchronization, ignore
+      String fingerprint = CalendarConverterService.getEventFingerprint(calendarEvent);
+      if (fingerprint.equals(correspondenceService.getFingerprint(username, calendarEvent.getId()))) {
+        if (LOG.isTraceEnabled()) {
+          LOG.trace("eXo event content is unchanged since last synchronization, ignore: " + calendarEvent.getSummary());
+        }
         continue;
       }
       String exoMasterId = null;
       if (calendarEvent.getIsExceptionOccurrence() != null && calendarEvent.getIsExceptionOccurrence()) {
-        exoMasterId = exoStorageService.getExoEventMasterRecurenceByOriginalUUID(calendarEvent.getOriginalReference());
+        exoMasterId = getExoEventMasterRecurenceByOriginalUUID(calendarEvent.getOriginalReference());
         if (exoMasterId == null) {
           LOG.error("No master Id was found for occurence: " + calendarEvent.getSummary() + " with recurrenceId = " + calendarEvent.getRecurrenceId() + ". The event will not be updated.");
         }
       }
-      boolean deleteEvent = exchangeStorageService.updateOrCreateExchangeAppointment(username, service, calendarEvent, exoMasterId, getUserExoCalenarTimeZoneSetting(), null);
+      boolean deleteEvent = exchangeStorageService.updateOrCreateExchangeAppointment(username, getService(), calendarEvent, exoMasterId, context.getTimeZone(), null);
       if (deleteEvent) {
         exoStorageService.deleteEvent(username, calendarEvent);
+      } else if (correspondenceService.getCorrespondingId(username, calendarEvent.getId()) != null) {
+        correspondenceService.setFingerprint(username, calendarEvent.getId(), fingerprint);
       }
-      updatedExoEventIDs.add(calendarEvent.getId());
+      context.addUpdatedEventID(calendarEvent.getId());
     }
   }
 
-  private void synchronizeNewlyExoEvents(FolderId folderId, List<String> updatedExoEventIDs, Date exoLastSyncDate) throws Exception {
+  private void synchronizeNewlyExoEvents(FolderId folderId, SynchronizationContext context, Date exoLastSyncDate) throws Exception {
     // Search for existant Appointments in Exchange but not in eXo
-    Iterable<CalendarEvent> unsynchronizedEvents = searchUnsynchronizedAppointments(username, folderId.getUniqueId());
+    List<CalendarEvent> unsynchronizedEvents = searchUnsynchronizedAppointments(username, folderId.getUniqueId());
     for (CalendarEvent calendarEvent : unsynchronizedEvents) {
       // To not have redendance
-      if (updatedExoEventIDs != null && updatedExoEventIDs.contains(calendarEvent.getId())) {
+      if (context.isEventUpdated(calendarEvent.getId())) {
         continue;
       }
       if (calendarEvent.getLastUpdatedTime() != null) {
         if (calendarEvent.getLastUpdatedTime().after(exoLastSyncDate)) {
           String exoMasterId = null;
           if (calendarEvent.getIsExceptionOccurrence() != null && calendarEvent.getIsExceptionOccurrence()) {
-            exoMasterId = exoStorageService.getExoEventMasterRecurenceByOriginalUUID(calendarEvent.getOriginalReference());
+            exoMasterId = getExoEventMasterRecurenceByOriginalUUID(calendarEvent.getOriginalReference());
             if (exoMasterId == null) {
               LOG.error("No master Id was found for occurence: " + calendarEvent.getSummary() + " with recurrenceId = " + calendarEvent.getRecurrenceId() + ". The event will not be updated.");
               continue;
             }
           }
-          boolean deleteEvent = exchangeStorageService.updateOrCreateExchangeAppointment(username, service, calendarEvent, exoMasterId, getUserExoCalenarTimeZoneSetting(), null);
+          boolean deleteEvent = exchangeStorageService.updateOrCreateExchangeAppointment(username, getService(), calendarEvent, exoMasterId, context.getTimeZone(), null);
           if (deleteEvent) {
             exoStorageService.deleteEvent(username, calendarEvent);
           }
-          if (updatedExoEventIDs != null) {
-            updatedExoEventIDs.add(calendarEvent.getId());
-          }
+          context.addUpdatedEventID(calendarEvent.getId());
         } else {
           exoStorageService.deleteEvent(username, calendarEvent);
         }
@@ -698,7 +1099,7 @@ public class IntegrationService {
     }
   }
 
-  private void synchronizeAppointmentsByModificationDate(FolderId folderId, Date lastSyncDate, List<String> updatedExoEventIDs, int diffTimeZone) throws Exception, ServiceLocalException,
+  private void synchronizeAppointmentsByModificationDate(FolderId folderId, Date lastSyncDate, SynchronizationContext context, int diffTimeZone) throws Exception, ServiceLocalException,
       ParseException {
     Iterable<Item> items = searchAllAppointmentsModifiedSince(folderId, lastSyncDate, diffTimeZone);
     // Search for modified Appointments in Exchange, since last check date.
@@ -707,27 +1108,29 @@ public class IntegrationService {
         // Test if there is a modification conflict
         CalendarEvent event = exoStorageService.getEventByAppointmentId(username, item.getId().getUniqueId());
         if (event != null) {
-          if (updatedExoEventIDs != null && updatedExoEventIDs.contains(event.getId())) {
+          if (context.isEventUpdated(event.getId())) {
             // Already updated by previous operation
             continue;
           }
           Date eventModifDate = CalendarConverterService.convertDateToUTC(event.getLastUpdatedTime());
           Date itemModifDate = item.getLastModifiedTime();
           if (itemModifDate.after(eventModifDate)) {
-            List<CalendarEvent> updatedEvents = exoStorageService.updateEvent((Appointment) item, username, getUserExoCalenarTimeZoneSetting());
-            if (updatedEvents != null && !updatedEvents.isEmpty() && updatedExoEventIDs != null) {
-              for (CalendarEvent calendarEvent : updatedEvents) {
-                updatedExoEventIDs.add(calendarEvent.getId());
+            // If the content didn't change since last synchronization, ignore
+            String fingerprint = CalendarConverterService.getAppointmentFingerprint((Appointment) item);
+            if (fingerprint != null && fingerprint.equals(correspondenceService.getFingerprint(username, item.getId().getUniqueId()))) {
+              if (LOG.isTraceEnabled()) {
+                LOG.trace("Exchange appointment content is unchanged since last synchronization, ignore: " + event.getSummary());
               }
+              continue;
             }
+            List<CalendarEvent> updatedEvents = exoStorageService.updateEvent((Appointment) item, username, context.getTimeZone());
+            setFingerprints(item, fingerprint, updatedEvents);
+            context.addUpdatedEvents(updatedEvents);
           }
         } else {
-          List<CalendarEvent> updatedEvents = exoStorageService.createEvent((Appointment) item, username, getUserExoCalenarTimeZoneSetting());
-          if (updatedEvents != null && !updatedEvents.isEmpty() && updatedExoEventIDs != null) {
-            for (CalendarEvent calendarEvent : updatedEvents) {
-              updatedExoEventIDs.add(calendarEvent.getId());
-            }
-          }
+          List<CalendarEvent> updatedEvents = exoStorageService.createEvent((Appointment) item, username, context.getTimeZone());
+          setFingerprints(item, CalendarConverterService.getAppointmentFingerprint((Appointment) item), updatedEvents);
+          context.addUpdatedEvents(updatedEvents);
         }
       } else {
         LOG.warn("Item bound from exchange but not of type 'Appointment':" + item.getItemClass());
@@ -735,7 +1138,19 @@ public class IntegrationService {
     }
   }
 
-  private Iterable<CalendarEvent> searchUnsynchronizedAppointments(String username, String folderId) throws Exception {
+  private void setFingerprints(Item item, String itemFingerprint, List<CalendarEvent> updatedEvents) throws Exception {
+    if (itemFingerprint == null || updatedEvents == null) {
+      return;
+    }
+    correspondenceService.setFingerprint(username, item.getId().getUniqueId(), itemFingerprint);
+    for (CalendarEvent calendarEvent : updatedEvents) {
+      if (calendarEvent.getId() != null) {
+        correspondenceService.setFingerprint(username, calendarEvent.getId(), CalendarConverterService.getEventFingerprint(calendarEvent));
+      }
+    }
+  }
+
+  private List<CalendarEvent> searchUnsynchronizedAppointments(String username, String folderId) throws Exception {
     List<CalendarEvent> calendarEvents = exoStorageService.getUserCalendarEvents(username, folderId);
     Iterator<CalendarEvent> calendarEventsIterator = calendarEvents.iterator();
     while (calendarEventsIterator.hasNext()) {
@@ -745,7 +1160,7 @@ public class IntegrationService {
         // Item was detected, and will be created
         continue;
       }
-      Appointment appointment = exchangeStorageService.getAppointment(service, ItemId.getItemIdFromString(itemId));
+      Appointment appointment = exchangeStorageService.getAppointment(getService(), ItemId.getItemIdFromString(itemId));
       if (appointment != null) {
         calendarEventsIterator.remove();
       }
@@ -754,9 +1169,9 @@ public class IntegrationService {
   }
 
   private List<Item> searchAllItems(FolderId parentFolderId) throws Exception {
-    ItemView view = new ItemView(1000);
+    ItemView view = new ItemView(FULL_SYNCHRONIZATION_ITEMS_LIMIT);
     view.setPropertySet(new PropertySet(BasePropertySet.FirstClassProperties));
-    FindItemsResults<Item> findResults = service.findItems(parentFolderId, view);
+    FindItemsResults<Item> findResults = getService().findItems(parentFolderId, view);
     if (LOG.isTraceEnabled()) {
       LOG.trace("Exchange user calendar '" + username + "', items found: " + findResults.getTotalCount());
     }
@@ -785,11 +1200,21 @@ public class IntegrationService {
 
     ItemView view = new ItemView(100);
     view.setPropertySet(new PropertySet(BasePropertySet.FirstClassProperties));
-    FindItemsResults<Item> findResults = service.findItems(parentFolderId, new SearchFilter.IsGreaterThan(ItemSchema.LastModifiedTime, calendar.getTime()), view);
+    FindItemsResults<Item> findResults = getService().findItems(parentFolderId, new SearchFilter.IsGreaterThan(ItemSchema.LastModifiedTime, calendar.getTime()), view);
     if (LOG.isTraceEnabled()) {
       LOG.trace("Exchange user calendar '" + username + "', items found: " + findResults.getTotalCount());
     }
     return findResults.getItems();
   }
 
+  private static class ExchangeCalendarFolders {
+    private final Map<String, String> namesById;
+    private final long listingTime = System.currentTimeMillis();
+    private volatile boolean invalidated = false;
+
+    ExchangeCalendarFolders(Map<String, String> namesById) {
+      this.namesById = Collections.unmodifiableMap(namesById);
+    }
+  }
+
 }
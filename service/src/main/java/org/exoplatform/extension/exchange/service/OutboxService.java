@@ -0,0 +1,393 @@
+package org.exoplatform.extension.exchange.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.exoplatform.calendar.service.Utils;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.services.jcr.ext.app.SessionProviderService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.ext.hierarchy.NodeHierarchyCreator;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.picocontainer.Startable;
+
+/**
+ * 
+ * Queue of eXo events modifications to push to Exchange, filled by JCR actions
+ * so eXo saves don't wait for Exchange. Modifications of the same event are
+ * coalesced, and a worker pushes the pending modifications of a user in one
+ * batch after a short delay. A modification that fails is kept and retried
+ * with an exponential backoff, the whole eXo calendar is checked again by the
+ * scheduled job only when the retries are exhausted. Pending modifications
+ * are saved in one JCR node per user, and pushed again when the user logs in
+ * after a restart.
+ * 
+ * @author Boubaker Khanfir
+ * 
+ */
+public class OutboxService implements Startable {
+
+  private final static Log LOG = ExoLogger.getLogger(OutboxService.class);
+
+  private static final String OUTBOX_NODE_NAME = "calendar-exchange-outbox";
+  private static final String DELAY_PARAM_NAME = "outbox.delay";
+  private static final String THREADS_PARAM_NAME = "outbox.threads";
+  private static final String RETRY_DELAY_PARAM_NAME = "outbox.retry.delay";
+  private static final String RETRY_MAX_DELAY_PARAM_NAME = "outbox.retry.max.delay";
+  private static final String RETRY_ATTEMPTS_PARAM_NAME = "outbox.retry.attempts";
+
+  private static final String UPDATE = "update";
+  private static final String DELETE = "delete";
+
+  // Map of userId, pending modifications
+  private final ConcurrentMap<String, UserOutbox> outboxes = new ConcurrentHashMap<String, UserOutbox>();
+
+  private final NodeHierarchyCreator hierarchyCreator;
+  private final SessionProviderService providerService;
+
+  private ScheduledExecutorService executor;
+
+  private int delayInSeconds = 2;
+  private int threads = 2;
+  private int retryDelayInSeconds = 30;
+  private int retryMaxDelayInSeconds = 3600;
+  private int retryAttempts = 10;
+
+  public OutboxService(NodeHierarchyCreator hierarchyCreator, SessionProviderService providerService, InitParams params) {
+    this.hierarchyCreator = hierarchyCreator;
+    this.providerService = providerService;
+
+    if (params != null && params.containsKey(DELAY_PARAM_NAME)) {
+      delayInSeconds = Integer.valueOf(params.getValueParam(DELAY_PARAM_NAME).getValue());
+    }
+    if (delayInSeconds < 0) {
+      LOG.warn("Exchange integration, outbox service: init-param " + DELAY_PARAM_NAME + " is not correctly set. Use default: 2.");
+      delayInSeconds = 2;
+    }
+    if (params != null && params.containsKey(THREADS_PARAM_NAME)) {
+      threads = Integer.valueOf(params.getValueParam(THREADS_PARAM_NAME).getValue());
+    }
+    if (threads < 1) {
+      LOG.warn("Exchange integration, outbox service: init-param " + THREADS_PARAM_NAME + " is not correctly set. Use default: 1.");
+      threads = 1;
+    }
+    if (params != null && params.containsKey(RETRY_DELAY_PARAM_NAME)) {
+      retryDelayInSeconds = Integer.valueOf(params.getValueParam(RETRY_DELAY_PARAM_NAME).getValue());
+    }
+    if (params != null && params.containsKey(RETRY_MAX_DELAY_PARAM_NAME)) {
+      retryMaxDelayInSeconds = Integer.valueOf(params.getValueParam(RETRY_MAX_DELAY_PARAM_NAME).getValue());
+    }
+    if (retryDelayInSeconds < 1 || retryMaxDelayInSeconds < retryDelayInSeconds) {
+      LOG.warn("Exchange integration, outbox service: init-params " + RETRY_DELAY_PARAM_NAME + " and " + RETRY_MAX_DELAY_PARAM_NAME + " are not correctly set. Use defaults: 30 and 3600.");
+      retryDelayInSeconds = 30;
+      retryMaxDelayInSeconds = 3600;
+    }
+    if (params != null && params.containsKey(RETRY_ATTEMPTS_PARAM_NAME)) {
+      retryAttempts = Integer.valueOf(params.getValueParam(RETRY_ATTEMPTS_PARAM_NAME).getValue());
+    }
+    if (retryAttempts < 1) {
+      LOG.warn("Exchange integration, outbox service: init-param " + RETRY_ATTEMPTS_PARAM_NAME + " is not correctly set. Use default: 1.");
+      retryAttempts = 1;
+    }
+  }
+
+  @Override
+  public void start() {
+    executor = Executors.newScheduledThreadPool(threads);
+  }
+
+  @Override
+  public void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * 
+   * Adds a modification of an eXo event to push to Exchange.
+   * 
+   * @param username
+   * @param eventId
+   * @throws Exception
+   */
+  public void enqueueUpdate(String username, String eventId) throws Exception {
+    enqueue(username, new OutboxEntry(eventId, null, false, 0, 0));
+  }
+
+  /**
+   * 
+   * Adds a deletion of an eXo event to push to Exchange.
+   * 
+   * @param username
+   * @param eventId
+   * @param calendarId
+   * @throws Exception
+   */
+  public void enqueueDeletion(String username, String eventId, String calendarId) throws Exception {
+    enqueue(username, new OutboxEntry(eventId, calendarId, true, 0, 0));
+  }
+
+  /**
+   * 
+   * Pushes the modifications of the user that are still pending, used when the
+   * user logs in.
+   * 
+   * @param username
+   * @throws Exception
+   */
+  public void resume(String username) throws Exception {
+    UserOutbox outbox = getOutbox(username);
+    synchronized (outbox) {
+      if (!outbox.entries.isEmpty()) {
+        schedule(username, outbox);
+      }
+    }
+  }
+
+  private void enqueue(String username, OutboxEntry entry) throws Exception {
+    UserOutbox outbox = getOutbox(username);
+    boolean modified = false;
+    synchronized (outbox) {
+      OutboxEntry previousEntry = outbox.entries.put(entry.eventId, entry);
+      modified = previousEntry == null || previousEntry.deletion != entry.deletion || previousEntry.attempts > 0;
+      schedule(username, outbox);
+    }
+    // Save only the first modification of the event, or the one resetting its
+    // retries
+    if (modified) {
+      storeOutbox(username, outbox);
+    }
+  }
+
+  private void schedule(final String username, final UserOutbox outbox) {
+    if (outbox.scheduled) {
+      return;
+    }
+    outbox.scheduled = true;
+    // Wait until the next retry if all pending entries failed before
+    long delay = delayInSeconds * 1000L;
+    long nextAttemptTime = Long.MAX_VALUE;
+    for (OutboxEntry entry : outbox.entries.values()) {
+      nextAttemptTime = Math.min(nextAttemptTime, entry.nextAttemptTime);
+    }
+    if (nextAttemptTime != Long.MAX_VALUE) {
+      delay = Math.max(delay, nextAttemptTime - System.currentTimeMillis());
+    }
+    executor.schedule(new Runnable() {
+      public void run() {
+        try {
+          push(username, outbox);
+        } catch (Exception e) {
+          LOG.error("Error while pushing eXo events modifications to Exchange for user: " + username, e);
+        } finally {
+          synchronized (outbox) {
+            outbox.scheduled = false;
+            if (!outbox.entries.isEmpty() && IntegrationService.getInstance(username) != null) {
+              schedule(username, outbox);
+            }
+          }
+        }
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void push(String username, UserOutbox outbox) throws Exception {
+    IntegrationService integrationService = IntegrationService.getInstance(username);
+    if (integrationService == null) {
+      // Pending modifications are kept until the user logs in again
+      return;
+    }
+    long now = System.currentTimeMillis();
+    List<OutboxEntry> entries = new ArrayList<OutboxEntry>();
+    synchronized (outbox) {
+      for (OutboxEntry entry : outbox.entries.values()) {
+        if (entry.nextAttemptTime <= now) {
+          entries.add(entry);
+        }
+      }
+    }
+    if (entries.isEmpty()) {
+      return;
+    }
+    if (!integrationService.trySetSynchronizationStarted()) {
+      // Synchronization running or no Exchange service available, retry
+      // later
+      return;
+    }
+    try {
+      if (integrationService.getUserExoLastCheckDate() == null) {
+        // Synchronization not run yet or disabled after an error, the
+        // scheduled job will synchronize all modifications
+        removeEntries(outbox, entries);
+        return;
+      }
+      boolean pushed = false;
+      boolean gaveUp = false;
+      for (OutboxEntry entry : entries) {
+        try {
+          if (entry.deletion) {
+            integrationService.deleteExchangeCalendarEvent(entry.eventId, entry.calendarId);
+          } else {
+            integrationService.updateOrCreateExchangeCalendarEvent(entry.eventId);
+          }
+          pushed = true;
+        } catch (Exception e) {
+          int attempts = entry.attempts + 1;
+          if (attempts >= retryAttempts) {
+            LOG.error("Error while pushing to Exchange the modifications of eXo event: " + entry.eventId + ", giving up after " + attempts + " attempts.", e);
+            // Integration is out of sync, so disable auto synchronization
+            // until the scheduled job runs and try to fix this
+            integrationService.setUserExoLastCheckDate(0);
+            gaveUp = true;
+          } else {
+            long retryDelay = Math.min((retryDelayInSeconds * 1000L) << Math.min(attempts - 1, 20), retryMaxDelayInSeconds * 1000L);
+            LOG.warn("Error while pushing to Exchange the modifications of eXo event: " + entry.eventId + ", retry in " + (retryDelay / 1000) + " seconds. Cause: " + e.getMessage());
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Error while pushing to Exchange the modifications of eXo event: " + entry.eventId, e);
+            }
+            retryEntry(outbox, entry, new OutboxEntry(entry.eventId, entry.calendarId, entry.deletion, attempts, System.currentTimeMillis() + retryDelay));
+          }
+        }
+      }
+      removeEntries(outbox, entries);
+      // Don't cancel the full synchronization needed by a given up entry
+      if (pushed && !gaveUp) {
+        integrationService.setUserExoLastCheckDate(System.currentTimeMillis());
+      }
+    } finally {
+      integrationService.setSynchronizationStopped();
+      storeOutbox(username, outbox);
+    }
+  }
+
+  private void retryEntry(UserOutbox outbox, OutboxEntry entry, OutboxEntry retryEntry) {
+    synchronized (outbox) {
+      // The event may have been modified again in the meantime
+      if (outbox.entries.get(entry.eventId) == entry) {
+        outbox.entries.put(entry.eventId, retryEntry);
+      }
+    }
+  }
+
+  private void removeEntries(UserOutbox outbox, List<OutboxEntry> entries) {
+    synchronized (outbox) {
+      for (OutboxEntry entry : entries) {
+        // The event may have been modified again in the meantime
+        if (outbox.entries.get(entry.eventId) == entry) {
+          outbox.entries.remove(entry.eventId);
+        }
+      }
+    }
+  }
+
+  private void storeOutbox(String username, UserOutbox outbox) throws Exception {
+    Properties properties = new Properties();
+    synchronized (outbox) {
+      for (OutboxEntry entry : outbox.entries.values()) {
+        properties.setProperty(entry.eventId, (entry.deletion ? DELETE : UPDATE) + ";" + entry.attempts + ";" + entry.nextAttemptTime + (entry.deletion ? ";" + entry.calendarId : ""));
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    properties.store(out, "");
+    SessionProvider sessionProvider = providerService.getSystemSessionProvider(null);
+    Node node = hierarchyCreator.getUserApplicationNode(sessionProvider, username);
+    if (node == null) {
+      throw new IllegalStateException("User application node not found. Please fix this and try later.");
+    }
+    Session session = node.getSession();
+    if (!node.hasNode(OUTBOX_NODE_NAME)) {
+      if (properties.isEmpty()) {
+        return;
+      }
+      node = node.addNode(OUTBOX_NODE_NAME, Utils.NT_RESOURCE);
+      node.setProperty(Utils.JCR_MIMETYPE, "text/plain");
+    } else {
+      node = node.getNode(OUTBOX_NODE_NAME);
+    }
+    node.setProperty(Utils.JCR_LASTMODIFIED, java.util.Calendar.getInstance().getTimeInMillis());
+    node.setProperty(Utils.JCR_DATA, new ByteArrayInputStream(out.toByteArray()));
+    session.save();
+  }
+
+  private UserOutbox getOutbox(String username) throws Exception {
+    UserOutbox outbox = outboxes.get(username);
+    if (outbox == null) {
+      outbox = loadOutbox(username);
+      UserOutbox existingOutbox = outboxes.putIfAbsent(username, outbox);
+      if (existingOutbox != null) {
+        outbox = existingOutbox;
+      }
+    }
+    return outbox;
+  }
+
+  private UserOutbox loadOutbox(String username) throws Exception {
+    UserOutbox outbox = new UserOutbox();
+    SessionProvider sessionProvider = providerService.getSystemSessionProvider(null);
+    Node node = hierarchyCreator.getUserApplicationNode(sessionProvider, username);
+    if (node == null) {
+      throw new IllegalStateException("User application node not found. Please fix this and try later.");
+    }
+    if (node.hasNode(OUTBOX_NODE_NAME)) {
+      Properties properties = new Properties();
+      InputStream inputStream = node.getNode(OUTBOX_NODE_NAME).getProperty(Utils.JCR_DATA).getStream();
+      try {
+        properties.load(inputStream);
+      } finally {
+        inputStream.close();
+      }
+      @SuppressWarnings("unchecked")
+      Enumeration<String> enumeration = (Enumeration<String>) properties.propertyNames();
+      while (enumeration.hasMoreElements()) {
+        String eventId = enumeration.nextElement();
+        // Value: type;attempts;next attempt time[;calendar id]
+        String[] values = properties.getProperty(eventId).split(";", 4);
+        boolean deletion = values[0].equals(DELETE);
+        int attempts = values.length > 1 ? Integer.valueOf(values[1]) : 0;
+        long nextAttemptTime = values.length > 2 ? Long.valueOf(values[2]) : 0;
+        String calendarId = deletion && values.length > 3 ? values[3] : null;
+        outbox.entries.put(eventId, new OutboxEntry(eventId, calendarId, deletion, attempts, nextAttemptTime));
+      }
+    }
+    return outbox;
+  }
+
+  private static class UserOutbox {
+    // Map of eXo event id, pending modification
+    final Map<String, OutboxEntry> entries = new LinkedHashMap<String, OutboxEntry>();
+    boolean scheduled = false;
+  }
+
+  private static class OutboxEntry {
+    final String eventId;
+    final String calendarId;
+    final boolean deletion;
+    // Number of failed attempts and time of next attempt
+    final int attempts;
+    final long nextAttemptTime;
+
+    OutboxEntry(String eventId, String calendarId, boolean deletion, int attempts, long nextAttemptTime) {
+      this.eventId = eventId;
+      this.calendarId = calendarId;
+      this.deletion = deletion;
+      this.attempts = attempts;
+      this.nextAttemptTime = nextAttemptTime;
+    }
+  }
+
+}
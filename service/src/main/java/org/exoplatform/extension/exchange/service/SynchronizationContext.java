@@ -0,0 +1,108 @@
+package org.exoplatform.extension.exchange.service;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.exoplatform.calendar.service.CalendarEvent;
+
+/**
+ *
+ * State of one synchronization cycle of a user, created by the scheduled task
+ * and passed to each synchronization step. It keeps the ids of eXo events and
+ * Exchange items already synchronized during the cycle, to not synchronize
+ * them again in the opposite direction, and the user calendar timezone
+ * resolved once for the whole cycle. It's not thread safe, each folder
+ * synchronized in parallel uses its own copy.
+ *
+ * @author Boubaker Khanfir
+ *
+ */
+public class SynchronizationContext {
+
+  // eXo events ids modified by the synchronization
+  private final Set<String> updatedExoEventIDs;
+
+  // Exchange items ids already synchronized from subscription events
+  private final Set<String> synchronizedItemIDs = new HashSet<String>();
+
+  private TimeZone timeZone;
+
+  public SynchronizationContext() {
+    this.updatedExoEventIDs = new HashSet<String>();
+  }
+
+  private SynchronizationContext(SynchronizationContext context) {
+    this.updatedExoEventIDs = new HashSet<String>(context.updatedExoEventIDs);
+    this.timeZone = context.timeZone;
+  }
+
+  /**
+   *
+   * @return user eXo calendar timezone used during the cycle
+   */
+  public TimeZone getTimeZone() {
+    return timeZone;
+  }
+
+  public void setTimeZone(TimeZone timeZone) {
+    this.timeZone = timeZone;
+  }
+
+  /**
+   *
+   * @param eventId
+   * @return true if the eXo event was modified by the synchronization
+   */
+  public boolean isEventUpdated(String eventId) {
+    return updatedExoEventIDs.contains(eventId);
+  }
+
+  public void addUpdatedEventID(String eventId) {
+    updatedExoEventIDs.add(eventId);
+  }
+
+  public void addUpdatedEventIDs(Collection<String> eventIds) {
+    if (eventIds != null) {
+      updatedExoEventIDs.addAll(eventIds);
+    }
+  }
+
+  public void addUpdatedEvents(Collection<CalendarEvent> events) {
+    if (events != null) {
+      for (CalendarEvent calendarEvent : events) {
+        updatedExoEventIDs.add(calendarEvent.getId());
+      }
+    }
+  }
+
+  /**
+   *
+   * @param itemId
+   * @return false if the Exchange item was already synchronized in this cycle
+   */
+  public boolean addSynchronizedItemID(String itemId) {
+    return synchronizedItemIDs.add(itemId);
+  }
+
+  /**
+   *
+   * @return a copy of this context to use in a folder synchronization worker
+   */
+  public SynchronizationContext newFolderContext() {
+    return new SynchronizationContext(this);
+  }
+
+  /**
+   *
+   * Adds the eXo events modified in a folder synchronization worker.
+   *
+   * @param folderContext
+   *          context returned by {@link #newFolderContext()}
+   */
+  public void merge(SynchronizationContext folderContext) {
+    updatedExoEventIDs.addAll(folderContext.updatedExoEventIDs);
+  }
+
+}
@@ -0,0 +1,161 @@
+package org.exoplatform.extension.exchange.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Full synchronization of Exchange folders requested by the user, run as soon
+ * as the current synchronization of the user finishes instead of waiting for
+ * the next scheduled one. It's exposed by REST service to follow the progress
+ * of the import and to cancel it.
+ *
+ * @author Boubaker Khanfir
+ *
+ */
+public class SynchronizationJob implements Serializable {
+  private static final long serialVersionUID = 2940581766362013317L;
+
+  public enum Status {
+    QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED, STOPPED
+  }
+
+  private final String id = UUID.randomUUID().toString();
+  private final String username;
+  private final List<String> folderIds;
+  private final long creationTime = System.currentTimeMillis();
+
+  private final AtomicInteger processedItems = new AtomicInteger();
+  private final AtomicInteger totalItems = new AtomicInteger();
+
+  private volatile Status status = Status.QUEUED;
+  private volatile boolean cancelRequested = false;
+  private volatile boolean stopRequested = false;
+  private volatile long startTime;
+  private volatile long endTime;
+  private volatile String error;
+
+  public SynchronizationJob(String username, List<String> folderIds) {
+    this.username = username;
+    this.folderIds = Collections.unmodifiableList(new ArrayList<String>(folderIds));
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public List<String> getFolderIds() {
+    return folderIds;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public int getProcessedItems() {
+    return processedItems.get();
+  }
+
+  public int getTotalItems() {
+    return totalItems.get();
+  }
+
+  /**
+   * 
+   * @return number of items processed per second since the job started
+   */
+  public double getThroughput() {
+    if (startTime == 0) {
+      return 0;
+    }
+    long duration = (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    return duration <= 0 ? 0 : processedItems.get() * 1000d / duration;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * 
+   * @return true if the job is completed, failed, cancelled or stopped
+   */
+  public boolean isFinished() {
+    return status == Status.COMPLETED || status == Status.FAILED || status == Status.CANCELLED || status == Status.STOPPED;
+  }
+
+  /**
+   * 
+   * @param delay
+   *          in milliseconds
+   * @return true if the job finished more than 'delay' milliseconds ago
+   */
+  public boolean isFinishedSince(long delay) {
+    return isFinished() && (System.currentTimeMillis() - Math.max(endTime, creationTime)) > delay;
+  }
+
+  /**
+   * Requests the job to stop after the item in progress. Folders not imported
+   * yet aren't synchronized anymore.
+   */
+  public void cancel() {
+    cancelRequested = true;
+  }
+
+  /**
+   * Requests the job to stop after the item in progress when the user logs
+   * out. Folders not imported yet stay synchronized and are imported by the
+   * next synchronization.
+   */
+  public void stop() {
+    stopRequested = true;
+  }
+
+  public boolean isCancelRequested() {
+    return cancelRequested;
+  }
+
+  /**
+   * 
+   * @return true if the job was cancelled or stopped
+   */
+  public boolean isStopRequested() {
+    return cancelRequested || stopRequested;
+  }
+
+  public void addTotalItems(int count) {
+    totalItems.addAndGet(count);
+  }
+
+  public void itemProcessed() {
+    processedItems.incrementAndGet();
+  }
+
+  public void setStarted() {
+    startTime = System.currentTimeMillis();
+    status = Status.RUNNING;
+  }
+
+  public void setCompleted() {
+    setFinished(cancelRequested ? Status.CANCELLED : (stopRequested ? Status.STOPPED : Status.COMPLETED));
+  }
+
+  public void setFailed(String error) {
+    this.error = error;
+    setFinished(Status.FAILED);
+  }
+
+  private void setFinished(Status status) {
+    endTime = System.currentTimeMillis();
+    this.status = status;
+  }
+
+}
@@ -0,0 +1,277 @@
+package org.exoplatform.extension.exchange.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.exoplatform.calendar.service.Utils;
+import org.exoplatform.container.PortalContainer;
+import org.exoplatform.container.component.ComponentRequestLifecycle;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.services.jcr.ext.app.SessionProviderService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.ext.hierarchy.NodeHierarchyCreator;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.organization.UserProfile;
+import org.picocontainer.Startable;
+
+/**
+ * 
+ * Stores the synchronization state of users: the dates of last Exchange and
+ * eXo checks. The state is kept in memory and written behind, periodically
+ * and when the service stops, in one JCR node per user.
+ * 
+ * @author Boubaker Khanfir
+ * 
+ */
+public class SynchronizationStateService implements Startable {
+
+  private final static Log LOG = ExoLogger.getLogger(SynchronizationStateService.class);
+
+  private static final String STATE_NODE_NAME = "calendar-exchange-state";
+  private static final String FLUSH_DELAY_PARAM_NAME = "synchronization.state.flush.delay";
+
+  private static final String EXCHANGE_CHECK_DATE = "exchange.check.date";
+  private static final String EXO_CHECK_DATE = "exo.check.date";
+
+  // Map of userId, synchronization state
+  private final ConcurrentMap<String, SynchronizationState> states = new ConcurrentHashMap<String, SynchronizationState>();
+
+  private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "ExchangeSynchronizationStateFlush");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final NodeHierarchyCreator hierarchyCreator;
+  private final SessionProviderService providerService;
+  private final OrganizationService organizationService;
+
+  private int flushDelayInSeconds = 10;
+
+  public SynchronizationStateService(NodeHierarchyCreator hierarchyCreator, SessionProviderService providerService, OrganizationService organizationService, InitParams params) {
+    this.hierarchyCreator = hierarchyCreator;
+    this.providerService = providerService;
+    this.organizationService = organizationService;
+
+    if (params != null && params.containsKey(FLUSH_DELAY_PARAM_NAME)) {
+      flushDelayInSeconds = Integer.valueOf(params.getValueParam(FLUSH_DELAY_PARAM_NAME).getValue());
+    }
+    if (flushDelayInSeconds < 1) {
+      LOG.warn("Exchange integration, synchronization state service: init-param " + FLUSH_DELAY_PARAM_NAME + " is not correctly set. Use default: 10.");
+      flushDelayInSeconds = 10;
+    }
+  }
+
+  @Override
+  public void start() {
+    flushExecutor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        flush();
+      }
+    }, flushDelayInSeconds, flushDelayInSeconds, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void stop() {
+    flushExecutor.shutdownNow();
+    flush();
+  }
+
+  /**
+   * 
+   * @param username
+   * @return date of last Exchange check, null if never synchronized
+   * @throws Exception
+   */
+  public Date getLastCheckDate(String username) throws Exception {
+    SynchronizationState state = getState(username);
+    synchronized (state) {
+      return state.exchangeCheckDate > 0 ? new Date(state.exchangeCheckDate) : null;
+    }
+  }
+
+  /**
+   * 
+   * Sets the date of last Exchange check, and the date of last eXo check if
+   * it's before.
+   * 
+   * @param username
+   * @param time
+   * @throws Exception
+   */
+  public void setLastCheckDate(String username, long time) throws Exception {
+    SynchronizationState state = getState(username);
+    synchronized (state) {
+      state.exchangeCheckDate = time;
+      if (time > state.exoCheckDate) {
+        state.exoCheckDate = time;
+      }
+      state.dirty = true;
+    }
+  }
+
+  /**
+   * 
+   * @param username
+   * @return date of last eXo check, null if never synchronized or if the
+   *         synchronization was disabled after an error
+   * @throws Exception
+   */
+  public Date getExoLastCheckDate(String username) throws Exception {
+    SynchronizationState state = getState(username);
+    synchronized (state) {
+      return state.exoCheckDate > 0 ? new Date(state.exoCheckDate) : null;
+    }
+  }
+
+  /**
+   * 
+   * Sets the date of last eXo check, if the synchronization was run before.
+   * 
+   * @param username
+   * @param time
+   * @throws Exception
+   */
+  public void setExoLastCheckDate(String username, long time) throws Exception {
+    SynchronizationState state = getState(username);
+    synchronized (state) {
+      if (state.exoCheckDate <= 0) {
+        if (LOG.isTraceEnabled()) {
+          LOG.trace("User '" + username + "' exo last check time was not set before, may be the synhronization was not run before or an error occured in the meantime.");
+        }
+        return;
+      }
+      state.exoCheckDate = time;
+      state.dirty = true;
+    }
+  }
+
+  /**
+   * 
+   * Saves modified states in JCR.
+   */
+  public void flush() {
+    for (Map.Entry<String, SynchronizationState> entry : states.entrySet()) {
+      try {
+        storeState(entry.getKey(), entry.getValue());
+      } catch (Exception e) {
+        LOG.error("Error while saving Exchange synchronization state of user: " + entry.getKey(), e);
+      }
+    }
+  }
+
+  private void storeState(String username, SynchronizationState state) throws Exception {
+    Properties properties = new Properties();
+    synchronized (state) {
+      if (!state.dirty) {
+        return;
+      }
+      properties.setProperty(EXCHANGE_CHECK_DATE, String.valueOf(state.exchangeCheckDate));
+      properties.setProperty(EXO_CHECK_DATE, String.valueOf(state.exoCheckDate));
+      state.dirty = false;
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      properties.store(out, "");
+      SessionProvider sessionProvider = providerService.getSystemSessionProvider(null);
+      Node node = hierarchyCreator.getUserApplicationNode(sessionProvider, username);
+      if (node == null) {
+        throw new IllegalStateException("User application node not found. Please fix this and try later.");
+      }
+      Session session = node.getSession();
+      if (!node.hasNode(STATE_NODE_NAME)) {
+        node = node.addNode(STATE_NODE_NAME, Utils.NT_RESOURCE);
+        node.setProperty(Utils.JCR_MIMETYPE, "text/plain");
+      } else {
+        node = node.getNode(STATE_NODE_NAME);
+      }
+      node.setProperty(Utils.JCR_LASTMODIFIED, java.util.Calendar.getInstance().getTimeInMillis());
+      node.setProperty(Utils.JCR_DATA, new ByteArrayInputStream(out.toByteArray()));
+      session.save();
+    } catch (Exception e) {
+      // Retry with next flush
+      synchronized (state) {
+        state.dirty = true;
+      }
+      throw e;
+    }
+  }
+
+  private SynchronizationState getState(String username) throws Exception {
+    SynchronizationState state = states.get(username);
+    if (state == null) {
+      state = loadState(username);
+      SynchronizationState existingState = states.putIfAbsent(username, state);
+      if (existingState != null) {
+        state = existingState;
+      }
+    }
+    return state;
+  }
+
+  private SynchronizationState loadState(String username) throws Exception {
+    SynchronizationState state = new SynchronizationState();
+    SessionProvider sessionProvider = providerService.getSystemSessionProvider(null);
+    Node node = hierarchyCreator.getUserApplicationNode(sessionProvider, username);
+    if (node == null) {
+      throw new IllegalStateException("User application node not found. Please fix this and try later.");
+    }
+    if (node.hasNode(STATE_NODE_NAME)) {
+      Properties properties = new Properties();
+      InputStream inputStream = node.getNode(STATE_NODE_NAME).getProperty(Utils.JCR_DATA).getStream();
+      try {
+        properties.load(inputStream);
+      } finally {
+        inputStream.close();
+      }
+      state.exchangeCheckDate = getTime(properties.getProperty(EXCHANGE_CHECK_DATE));
+      state.exoCheckDate = getTime(properties.getProperty(EXO_CHECK_DATE));
+    } else {
+      // Dates saved in user profile by previous versions
+      if (organizationService instanceof ComponentRequestLifecycle) {
+        ((ComponentRequestLifecycle) organizationService).startRequest(PortalContainer.getInstance());
+      }
+      try {
+        UserProfile userProfile = organizationService.getUserProfileHandler().findUserProfileByName(username);
+        if (userProfile != null) {
+          state.exchangeCheckDate = getTime(userProfile.getAttribute(EXCHANGE_CHECK_DATE));
+          state.exoCheckDate = getTime(userProfile.getAttribute(EXO_CHECK_DATE));
+          state.dirty = state.exchangeCheckDate > 0 || state.exoCheckDate > 0;
+        }
+      } finally {
+        if (organizationService instanceof ComponentRequestLifecycle) {
+          ((ComponentRequestLifecycle) organizationService).endRequest(PortalContainer.getInstance());
+        }
+      }
+    }
+    return state;
+  }
+
+  private static long getTime(String value) {
+    return value == null || value.isEmpty() ? 0 : Long.valueOf(value);
+  }
+
+  private static class SynchronizationState {
+    long exchangeCheckDate = 0;
+    long exoCheckDate = 0;
+    boolean dirty = false;
+  }
+
+}
@@ -1,18 +1,29 @@
 package org.exoplatform.extension.exchange.service.util;
 
 import java.io.ByteArrayInputStream;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import microsoft.exchange.webservices.data.Appointment;
 import microsoft.exchange.webservices.data.AppointmentSchema;
+import microsoft.exchange.webservices.data.AppointmentType;
 import microsoft.exchange.webservices.data.Attachment;
 import microsoft.exchange.webservices.data.AttachmentCollection;
 import microsoft.exchange.webservices.data.Attendee;
@@ -23,11 +34,15 @@ import microsoft.exchange.webservices.data.DayOfTheWeek;
 import microsoft.exchange.webservices.data.DeletedOccurrenceInfo;
 import microsoft.exchange.webservices.data.DeletedOccurrenceInfoCollection;
 import microsoft.exchange.webservices.data.FileAttachment;
+import microsoft.exchange.webservices.data.GetItemResponse;
 import microsoft.exchange.webservices.data.Importance;
+import microsoft.exchange.webservices.data.ItemId;
 import microsoft.exchange.webservices.data.LegacyFreeBusyStatus;
 import microsoft.exchange.webservices.data.MessageBody;
 import microsoft.exchange.webservices.data.OccurrenceInfo;
 import microsoft.exchange.webservices.data.OccurrenceInfoCollection;
+import microsoft.exchange.webservices.data.OutParam;
+import microsoft.exchange.webservices.data.PropertyDefinition;
 import microsoft.exchange.webservices.data.PropertySet;
 import microsoft.exchange.webservices.data.Recurrence;
 import microsoft.exchange.webservices.data.Recurrence.DailyPattern;
@@ -37,6 +52,8 @@ import microsoft.exchange.webservices.data.Recurrence.WeeklyPattern;
 import microsoft.exchange.webservices.data.Recurrence.YearlyPattern;
 import microsoft.exchange.webservices.data.Sensitivity;
 import microsoft.exchange.webservices.data.ServiceLocalException;
+import microsoft.exchange.webservices.data.ServiceResponseCollection;
+import microsoft.exchange.webservices.data.ServiceResult;
 import microsoft.exchange.webservices.data.StringList;
 import microsoft.exchange.webservices.data.TimeZoneDefinition;
 
@@ -66,13 +83,21 @@ public class CalendarConverterService {
   public static final String EXCHANGE_CALENDAR_ID_PREFIX = "EXCH";
   public static final String EXCHANGE_EVENT_ID_PREFIX = "ExcangeEvent";
 
-  private final static SimpleDateFormat UTC_DATE_FORMAT = new SimpleDateFormat("dd MMM yyyy HH:mm:ss");
-
-  public static final SimpleDateFormat RECURRENCE_ID_FORMAT = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
-
   // Reuse the object and save memory instead of instantiating this every call
   private static final ThreadLocal<Query> queryThreadLocal = new ThreadLocal<Query>();
 
+  // Attachments of an event are spooled to a temporary file instead of being
+  // kept in memory once their size, in bytes, exceeds this one
+  private static volatile long attachmentSpoolThreshold = 1024 * 1024;
+
+  // Attachments spooled by the current thread, deleted once the converted
+  // event is stored or dropped
+  private static final ThreadLocal<List<TemporaryFileInputStream>> spooledAttachmentsThreadLocal = new ThreadLocal<List<TemporaryFileInputStream>>();
+
+  // Map of username, user event categories by lower case name, loaded once
+  // per synchronization cycle
+  private static final ConcurrentMap<String, Map<String, EventCategory>> eventCategoriesByUser = new ConcurrentHashMap<String, Map<String, EventCategory>>();
+
   /**
    * 
    * Converts from Exchange Calendar Event to eXo Calendar Event.
@@ -171,13 +196,21 @@ public class CalendarConverterService {
    */
   public static List<CalendarEvent> convertExchangeToExoOccurenceEvent(CalendarEvent masterEvent, List<CalendarEvent> updatedEvents, List<String> appointmentIds, Appointment masterAppointment,
       String username, JCRDataStorage storage, UserHandler userHandler, TimeZone timeZone) throws Exception {
-    masterAppointment = Appointment.bind(masterAppointment.getService(), masterAppointment.getId(), new PropertySet(AppointmentSchema.ModifiedOccurrences));
+    // Load exception occurences once for the whole series
+    Map<String, CalendarEvent> exceptionEventsByRecurrenceId = getExceptionEventsByRecurrenceId(username, storage, masterEvent);
+    // Fetch modified and deleted occurrences of the series in one request
+    masterAppointment = Appointment.bind(masterAppointment.getService(), masterAppointment.getId(), new PropertySet(AppointmentSchema.ModifiedOccurrences,
+        AppointmentSchema.DeletedOccurrences));
     {
       OccurrenceInfoCollection occurrenceInfoCollection = masterAppointment.getModifiedOccurrences();
       if (occurrenceInfoCollection != null && occurrenceInfoCollection.getCount() > 0) {
+        Map<OccurrenceInfo, Appointment> occurenceAppointments = getModifiedOccurenceAppointments(masterAppointment, occurrenceInfoCollection);
         for (OccurrenceInfo occurrenceInfo : occurrenceInfoCollection) {
-          Appointment occurenceAppointment = Appointment.bind(masterAppointment.getService(), occurrenceInfo.getItemId(), new PropertySet(BasePropertySet.FirstClassProperties));
-          CalendarEvent tmpEvent = getOccurenceOfDate(username, storage, masterEvent, occurrenceInfo.getOriginalStart(), timeZone);
+          Appointment occurenceAppointment = occurenceAppointments.get(occurrenceInfo);
+          if (occurenceAppointment == null) {
+            continue;
+          }
+          CalendarEvent tmpEvent = getOccurenceOfDate(exceptionEventsByRecurrenceId, storage, masterEvent, occurrenceInfo.getOriginalStart(), timeZone);
           if (verifyModifiedDatesConflict(tmpEvent, occurenceAppointment)) {
             if (LOG.isTraceEnabled()) {
               LOG.trace("Attempting to update eXo Occurent Event with Exchange Event, but modification date of eXo is after, ignore updating.");
@@ -187,27 +220,33 @@ public class CalendarConverterService {
           if (tmpEvent == null || tmpEvent.getIsExceptionOccurrence() == null || !tmpEvent.getIsExceptionOccurrence()) {
             tmpEvent = new CalendarEvent();
             convertExchangeToExoEvent(tmpEvent, occurenceAppointment, username, storage, userHandler, timeZone);
-            tmpEvent.setRecurrenceId(RECURRENCE_ID_FORMAT.format(tmpEvent.getFromDateTime()));
+            tmpEvent.setRecurrenceId(RecurrenceIdCodec.format(tmpEvent.getFromDateTime()));
             tmpEvent.setRepeatType(CalendarEvent.RP_NOREPEAT);
             tmpEvent.setId(masterEvent.getId());
             tmpEvent.setCalendarId(masterEvent.getCalendarId());
             LOG.info("Create exo calendar Occurence event: " + tmpEvent.getSummary() + ", with recurence id: " + tmpEvent.getRecurrenceId());
           } else {
-            LOG.info("Update exo calendar Occurence event: " + tmpEvent.getSummary() + ", with recurence id: " + tmpEvent.getRecurrenceId());
+            String oldContent = getEventContent(tmpEvent);
             convertExchangeToExoEvent(tmpEvent, occurenceAppointment, username, storage, userHandler, timeZone);
+            if (oldContent.equals(getEventContent(tmpEvent))) {
+              if (LOG.isTraceEnabled()) {
+                LOG.trace("eXo calendar Occurence event: " + tmpEvent.getSummary() + ", with recurence id: " + tmpEvent.getRecurrenceId() + " is unchanged, ignore updating.");
+              }
+              continue;
+            }
+            LOG.info("Update exo calendar Occurence event: " + tmpEvent.getSummary() + ", with recurence id: " + tmpEvent.getRecurrenceId());
           }
           updatedEvents.add(tmpEvent);
           appointmentIds.add(occurenceAppointment.getId().getUniqueId());
         }
       }
     }
-    masterAppointment = Appointment.bind(masterAppointment.getService(), masterAppointment.getId(), new PropertySet(AppointmentSchema.DeletedOccurrences));
 
     List<CalendarEvent> calendarEvents = new ArrayList<CalendarEvent>();
     DeletedOccurrenceInfoCollection deletedOccurrenceInfoCollection = masterAppointment.getDeletedOccurrences();
     if (deletedOccurrenceInfoCollection != null && deletedOccurrenceInfoCollection.getCount() > 0) {
       for (DeletedOccurrenceInfo occurrenceInfo : deletedOccurrenceInfoCollection) {
-        CalendarEvent toDeleteEvent = getOccurenceOfDate(username, storage, masterEvent, occurrenceInfo.getOriginalStart(), timeZone);
+        CalendarEvent toDeleteEvent = getOccurenceOfDate(exceptionEventsByRecurrenceId, storage, masterEvent, occurrenceInfo.getOriginalStart(), timeZone);
         if (toDeleteEvent == null) {
           if (LOG.isTraceEnabled()) {
             LOG.trace("Occurence is already deleted from recurrent Event: " + masterEvent.getSummary());
@@ -220,6 +259,39 @@ public class CalendarConverterService {
     return calendarEvents;
   }
 
+  /**
+   * 
+   * Loads modified occurences of a recurrent series in one batched GetItem
+   * request.
+   * 
+   * @param masterAppointment
+   * @param occurrenceInfoCollection
+   * @return Map of occurence information and its loaded Exchange appointment
+   * @throws Exception
+   */
+  private static Map<OccurrenceInfo, Appointment> getModifiedOccurenceAppointments(Appointment masterAppointment, OccurrenceInfoCollection occurrenceInfoCollection)
+      throws Exception {
+    List<OccurrenceInfo> occurrenceInfos = new ArrayList<OccurrenceInfo>();
+    List<ItemId> itemIds = new ArrayList<ItemId>();
+    for (OccurrenceInfo occurrenceInfo : occurrenceInfoCollection) {
+      occurrenceInfos.add(occurrenceInfo);
+      itemIds.add(occurrenceInfo.getItemId());
+    }
+    Map<OccurrenceInfo, Appointment> occurenceAppointments = new HashMap<OccurrenceInfo, Appointment>();
+    ServiceResponseCollection<GetItemResponse> responses = masterAppointment.getService().bindToItems(itemIds, new PropertySet(BasePropertySet.FirstClassProperties));
+    // Responses are returned in the same order as requested items
+    int i = 0;
+    for (GetItemResponse response : responses) {
+      OccurrenceInfo occurrenceInfo = occurrenceInfos.get(i++);
+      if (response.getResult() != ServiceResult.Success || !(response.getItem() instanceof Appointment)) {
+        LOG.warn("Unable to load Exchange occurence with id: " + occurrenceInfo.getItemId().getUniqueId() + ", error: " + response.getErrorMessage());
+        continue;
+      }
+      occurenceAppointments.put(occurrenceInfo, (Appointment) response.getItem());
+    }
+    return occurenceAppointments;
+  }
+
   /**
    * 
    * @param event
@@ -259,12 +331,16 @@ public class CalendarConverterService {
     setAppointmentAttendees(appointment, calendarEvent, userHandler, username);
     setAppointmentReminder(appointment, calendarEvent);
 
-    appointment.setLocation(calendarEvent.getLocation());
-    appointment.setSubject(calendarEvent.getSummary());
-    if (calendarEvent.isPrivate()) {
-      appointment.setSensitivity(Sensitivity.Private);
-    } else {
-      appointment.setSensitivity(Sensitivity.Normal);
+    // Only modified properties are set, to not send unchanged ones on update
+    if (isPropertyChanged(appointment, AppointmentSchema.Location, calendarEvent.getLocation())) {
+      appointment.setLocation(calendarEvent.getLocation());
+    }
+    if (isPropertyChanged(appointment, AppointmentSchema.Subject, calendarEvent.getSummary())) {
+      appointment.setSubject(calendarEvent.getSummary());
+    }
+    Sensitivity sensitivity = calendarEvent.isPrivate() ? Sensitivity.Private : Sensitivity.Normal;
+    if (isPropertyChanged(appointment, AppointmentSchema.Sensitivity, sensitivity)) {
+      appointment.setSensitivity(sensitivity);
     }
     setAppointmentAttachements(appointment, calendarEvent);
 
@@ -272,6 +348,111 @@ public class CalendarConverterService {
     setApoinementSummary(appointment, calendarEvent);
   }
 
+  /**
+   * 
+   * @param appointment
+   * @return true if the appointment is new or has modifications to send to
+   *         Exchange
+   * @throws Exception
+   */
+  public static boolean isAppointmentModified(Appointment appointment) throws Exception {
+    if (appointment.isNew() || appointment.isDirty()) {
+      return true;
+    }
+    if (appointment.getHasAttachments()) {
+      for (Attachment attachment : appointment.getAttachments()) {
+        // Attachments added since the appointment was loaded don't have an id
+        if (attachment.getId() == null) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * 
+   * Computes a normalized representation of the synchronized fields of an eXo
+   * event, used to detect whether a conversion modified the event.
+   * 
+   * @param event
+   * @return
+   */
+  public static String getEventContent(CalendarEvent event) {
+    StringBuilder content = new StringBuilder();
+    content.append(event.getSummary()).append('|').append(event.getLocation()).append('|').append(event.getDescription());
+    content.append('|').append(event.getFromDateTime() == null ? null : event.getFromDateTime().getTime());
+    content.append('|').append(event.getToDateTime() == null ? null : event.getToDateTime().getTime());
+    content.append('|').append(event.getStatus()).append('|').append(event.getEventState()).append('|').append(event.getPriority());
+    content.append('|').append(event.getEventCategoryId()).append('|').append(event.isPrivate());
+    content.append('|').append(Arrays.toString(event.getParticipant()));
+    content.append('|').append(event.getRepeatType()).append('|').append(event.getRepeatInterval()).append('|').append(event.getRepeatCount());
+    content.append('|').append(event.getRepeatUntilDate() == null ? null : event.getRepeatUntilDate().getTime());
+    content.append('|').append(Arrays.toString(event.getRepeatByDay())).append('|').append(Arrays.toString(event.getExcludeId()));
+    if (event.getReminders() != null) {
+      for (Reminder reminder : event.getReminders()) {
+        content.append("|R").append(reminder.getReminderType()).append(':').append(reminder.getAlarmBefore());
+      }
+    }
+    if (event.getAttachment() != null) {
+      for (org.exoplatform.calendar.service.Attachment attachment : event.getAttachment()) {
+        content.append("|A").append(attachment.getName()).append(':').append(attachment.getSize());
+        // A content modified without changing the size has a new modification date
+        content.append(':').append(attachment.getLastModified() == null ? null : attachment.getLastModified().getTimeInMillis());
+      }
+    }
+    return content.toString();
+  }
+
+  /**
+   * 
+   * @param event
+   * @return hash of the synchronized fields of the eXo event
+   * @throws Exception
+   */
+  public static String getEventFingerprint(CalendarEvent event) throws Exception {
+    return getFingerprint(getEventContent(event));
+  }
+
+  /**
+   * 
+   * Computes a hash of the properties of a single Exchange appointment
+   * returned when searching items. The size of the item is used for the body,
+   * attendees and attachments that aren't returned by the search.
+   * 
+   * @param appointment
+   * @return the hash, or null if the appointment isn't a single one or its
+   *         properties aren't loaded
+   */
+  public static String getAppointmentFingerprint(Appointment appointment) {
+    try {
+      // Modifications of occurences aren't visible in recurrent master
+      // properties
+      if (appointment.getAppointmentType() != AppointmentType.Single) {
+        return null;
+      }
+      StringBuilder content = new StringBuilder();
+      content.append(appointment.getSubject()).append('|').append(appointment.getLocation());
+      content.append('|').append(appointment.getStart() == null ? null : appointment.getStart().getTime());
+      content.append('|').append(appointment.getEnd() == null ? null : appointment.getEnd().getTime());
+      content.append('|').append(appointment.getIsAllDayEvent()).append('|').append(appointment.getImportance()).append('|').append(appointment.getSensitivity());
+      content.append('|').append(appointment.getLegacyFreeBusyStatus()).append('|').append(appointment.getIsReminderSet()).append('|').append(appointment.getReminderMinutesBeforeStart());
+      content.append('|').append(appointment.getCategories()).append('|').append(appointment.getHasAttachments()).append('|').append(appointment.getSize());
+      return getFingerprint(content.toString());
+    } catch (Exception e) {
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("Unable to compute fingerprint of Exchange appointment, it will be synchronized.", e);
+      }
+      return null;
+    }
+  }
+
+  private static String getFingerprint(String content) throws Exception {
+    MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+    byte[] digest = messageDigest.digest(content.getBytes("UTF-8"));
+    return new BigInteger(1, digest).toString(16);
+  }
+
   /**
    * 
    * Converts from Exchange Calendar Recurring Master Event to eXo Calendar
@@ -333,7 +514,7 @@ public class CalendarConverterService {
     if (event.getRepeatUntilDate() == null && event.getRepeatCount() < 1) {
       recurrence.neverEnds();
     } else if (event.getRepeatUntilDate() != null) {
-      recurrence.setEndDate(getExchangeDateFromExchangeFormat(event.getRepeatUntilDate()));
+      recurrence.setEndDate(DateConverter.convertToDefaultTimeZoneFormat(event.getRepeatUntilDate()));
     } else {
       recurrence.setNumberOfOccurrences((int) event.getRepeatCount());
     }
@@ -446,109 +627,58 @@ public class CalendarConverterService {
    * @return true if same
    */
   public static boolean isSameDate(Date value1, Date value2) {
-    Calendar date1 = Calendar.getInstance();
-    date1.setTime(value1);
-    Calendar date2 = Calendar.getInstance();
-    date2.setTime(value2);
-    return isSameDate(date1, date2);
+    return DateConverter.isSameDate(value1, value2);
   }
 
   public static boolean isAllDayEvent(CalendarEvent eventCalendar, TimeZone userCalendarTimeZone) {
-    Calendar cal1 = Calendar.getInstance(userCalendarTimeZone);
-    cal1.setLenient(false);
-    Calendar cal2 = Calendar.getInstance(userCalendarTimeZone);
-    cal2.setLenient(false);
-
-    cal1.setTime(eventCalendar.getFromDateTime());
-    cal2.setTime(eventCalendar.getToDateTime());
-    return (cal1.get(Calendar.HOUR_OF_DAY) == 0 && cal1.get(Calendar.MINUTE) == 0 && cal2.get(Calendar.HOUR_OF_DAY) == cal2.getActualMaximum(Calendar.HOUR_OF_DAY) && cal2.get(Calendar.MINUTE) == cal2
-        .getActualMaximum(Calendar.MINUTE));
+    return DateConverter.getMinuteOfDay(eventCalendar.getFromDateTime(), userCalendarTimeZone) == 0
+        && DateConverter.getMinuteOfDay(eventCalendar.getToDateTime(), userCalendarTimeZone) == 23 * 60 + 59;
   }
 
-  public static Date convertDateToUTC(Date date) throws ParseException {
-    UTC_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
-    String time = UTC_DATE_FORMAT.format(date);
-    UTC_DATE_FORMAT.setTimeZone(TimeZone.getDefault());
-    return UTC_DATE_FORMAT.parse(time);
+  public static Date convertDateToUTC(Date date) {
+    return DateConverter.convertDateToUTC(date);
   }
 
   public static Date getExoDateFromExchangeFormat(Date date) {
-    int exchangeOffset = TimeZone.getDefault().getOffset(date.getTime()) / 60000;
-
-    Calendar calendar = Calendar.getInstance();
-    calendar.setTime(date);
-    calendar.add(Calendar.MINUTE, exchangeOffset);
-
-    return calendar.getTime();
+    return DateConverter.getExoDateFromExchangeFormat(date);
   }
 
+  /**
+   * 
+   * Gets the occurence of Exchange master appointment corresponding to eXo
+   * recurrence id.
+   * 
+   * @param masterAppointment
+   *          Exchange master appointment loaded with its recurrence
+   * @param recurrenceId
+   * @return Exchange occurence appointment or null if not found
+   * @throws Exception
+   */
   public static Appointment getAppointmentOccurence(Appointment masterAppointment, String recurrenceId) throws Exception {
-    Appointment appointment = null;
-    Date occDate = CalendarConverterService.RECURRENCE_ID_FORMAT.parse(recurrenceId);
-    {
-      Calendar calendar = Calendar.getInstance();
-      calendar.setTime(occDate);
-      calendar.set(Calendar.HOUR_OF_DAY, 0);
-      calendar.set(Calendar.MINUTE, 0);
-      calendar.set(Calendar.SECOND, 0);
-      calendar.set(Calendar.MILLISECOND, 0);
-      occDate = calendar.getTime();
-    }
-    int i = 1;
-    Date endDate = masterAppointment.getRecurrence().getEndDate();
-    if (endDate != null && occDate.getTime() > endDate.getTime()) {
-      return null;
-    }
-    Integer nbOccurences = masterAppointment.getRecurrence().getNumberOfOccurrences();
-
-    Calendar indexCalendar = Calendar.getInstance();
-    indexCalendar.setTime(masterAppointment.getRecurrence().getStartDate());
+    Date occDate = DateConverter.getStartOfDay(RecurrenceIdCodec.parse(recurrenceId));
+    return OccurenceResolver.getAppointmentOccurence(masterAppointment, occDate);
+  }
 
-    boolean continueSearch = true;
-    while (continueSearch && (nbOccurences == null || i <= nbOccurences)) {
-      Appointment tmpAppointment = null;
-      try {
-        tmpAppointment = Appointment.bindToOccurrence(masterAppointment.getService(), masterAppointment.getId(), i, new PropertySet(AppointmentSchema.Start));
-        Date date = CalendarConverterService.getExoDateFromExchangeFormat(tmpAppointment.getStart());
-        if (CalendarConverterService.isSameDate(occDate, date)) {
-          appointment = Appointment.bindToOccurrence(masterAppointment.getService(), masterAppointment.getId(), i, new PropertySet(BasePropertySet.FirstClassProperties));
-          continueSearch = false;
-        }
-        indexCalendar.setTime(date);
-      } catch (Exception e) {
-        // Recurence not found, can be deleted from Exchange.
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Error while getting occurence: " + recurrenceId + " of master appointment : " + masterAppointment.getSubject(), e);
+  private static Map<String, CalendarEvent> getExceptionEventsByRecurrenceId(String username, JCRDataStorage storage, CalendarEvent masterEvent) throws Exception {
+    Map<String, CalendarEvent> exceptionEventsByRecurrenceId = new HashMap<String, CalendarEvent>();
+    List<CalendarEvent> exceptionEvens = storage.getExceptionEvents(username, masterEvent);
+    if (exceptionEvens != null) {
+      for (CalendarEvent calendarEvent : exceptionEvens) {
+        if (calendarEvent.getRecurrenceId() != null) {
+          exceptionEventsByRecurrenceId.put(calendarEvent.getRecurrenceId(), calendarEvent);
         }
-        // increment date
-        indexCalendar.add(Calendar.DATE, 1);
-      }
-      i++;
-      if (continueSearch && (occDate.before(indexCalendar.getTime()) || (endDate != null && indexCalendar.getTime().after(endDate)))) {
-        continueSearch = false;
       }
     }
-    return appointment;
+    return exceptionEventsByRecurrenceId;
   }
 
-  private static Date getExchangeDateFromExchangeFormat(Date date) {
-    int exchangeOffset = TimeZone.getDefault().getOffset(date.getTime()) / 60000;
-
-    Calendar calendar = Calendar.getInstance();
-    calendar.setTime(date);
-    calendar.add(Calendar.MINUTE, -exchangeOffset);
-
-    return calendar.getTime();
-  }
-
-  private static CalendarEvent getOccurenceOfDate(String username, JCRDataStorage storage, CalendarEvent masterEvent, Date originalStart, TimeZone timeZone) throws Exception {
+  private static CalendarEvent getOccurenceOfDate(Map<String, CalendarEvent> exceptionEventsByRecurrenceId, JCRDataStorage storage, CalendarEvent masterEvent, Date originalStart,
+      TimeZone timeZone) throws Exception {
     Date date = getExoDateFromExchangeFormat(originalStart);
-    String recurenceId = RECURRENCE_ID_FORMAT.format(date);
-    List<CalendarEvent> exceptionEvens = storage.getExceptionEvents(username, masterEvent);
-    for (CalendarEvent calendarEvent : exceptionEvens) {
-      if (calendarEvent.getRecurrenceId().equals(recurenceId)) {
-        return calendarEvent;
-      }
+    String recurenceId = RecurrenceIdCodec.format(date);
+    CalendarEvent exceptionEvent = exceptionEventsByRecurrenceId.get(recurenceId);
+    if (exceptionEvent != null) {
+      return exceptionEvent;
     }
 
     Calendar from = Calendar.getInstance(timeZone);
@@ -578,17 +708,36 @@ public class CalendarConverterService {
   }
 
   private static void setAppointmentReminder(Appointment appointment, CalendarEvent calendarEvent) throws Exception {
-    appointment.setIsReminderSet(false);
+    Reminder lastReminder = null;
     List<Reminder> reminders = calendarEvent.getReminders();
-    if (reminders != null) {
-      for (Reminder reminder : reminders) {
-        appointment.setIsReminderSet(true);
-        appointment.setReminderMinutesBeforeStart((int) reminder.getAlarmBefore());
-        appointment.setReminderDueBy(convertToDefaultTimeZoneFormat(reminder.getFromDateTime()));
+    if (reminders != null && !reminders.isEmpty()) {
+      lastReminder = reminders.get(reminders.size() - 1);
+    }
+    if (isPropertyChanged(appointment, AppointmentSchema.IsReminderSet, lastReminder != null)) {
+      appointment.setIsReminderSet(lastReminder != null);
+    }
+    if (lastReminder != null) {
+      if (isPropertyChanged(appointment, AppointmentSchema.ReminderMinutesBeforeStart, (int) lastReminder.getAlarmBefore())) {
+        appointment.setReminderMinutesBeforeStart((int) lastReminder.getAlarmBefore());
+      }
+      Date reminderDueBy = convertToDefaultTimeZoneFormat(lastReminder.getFromDateTime());
+      if (isPropertyChanged(appointment, AppointmentSchema.ReminderDueBy, reminderDueBy)) {
+        appointment.setReminderDueBy(reminderDueBy);
       }
     }
   }
 
+  private static boolean isPropertyChanged(Appointment appointment, PropertyDefinition propertyDefinition, Object value) throws Exception {
+    if (appointment.isNew()) {
+      return true;
+    }
+    OutParam<Object> oldValue = new OutParam<Object>();
+    if (!appointment.tryGetProperty(propertyDefinition, oldValue)) {
+      return true;
+    }
+    return oldValue.getParam() == null ? value != null : !oldValue.getParam().equals(value);
+  }
+
   private static List<Appointment> getDeletedOccurences(Appointment masterAppointment, CalendarEvent event, TimeZone userCalendarTimeZone) throws Exception {
     List<Appointment> toDeleteOccurence = new ArrayList<Appointment>();
     String[] excludedRecurenceIds = event.getExcludeId();
@@ -614,11 +763,6 @@ public class CalendarConverterService {
     return /* EXCHANGE_CALENDAR_NAME_PREFIX + "-" + */categoryName;
   }
 
-  private static boolean isSameDate(java.util.Calendar date1, java.util.Calendar date2) {
-    return (date1.get(java.util.Calendar.DATE) == date2.get(java.util.Calendar.DATE) && date1.get(java.util.Calendar.MONTH) == date2.get(java.util.Calendar.MONTH) && date1
-        .get(java.util.Calendar.YEAR) == date2.get(java.util.Calendar.YEAR));
-  }
-
   private static void setAppointmentAttendees(Appointment appointment, CalendarEvent calendarEvent, UserHandler userHandler, String username) throws ServiceLocalException {
     AttendeeCollection attendees = appointment.getRequiredAttendees();
     assert attendees != null;
@@ -635,13 +779,13 @@ public class CalendarConverterService {
         if (partacipant == null || partacipant.isEmpty() || partacipant.equals(username)) {
           continue;
         }
-        try {
-          User user = userHandler.findUserByName(partacipant);
+        User user = getPartacipantUser(userHandler, partacipant);
+        if (user != null) {
           if (!containsAttendee(attendees, user.getEmail())) {
             Attendee attendee = new Attendee(user.getDisplayName(), user.getEmail());
             attendees.add(attendee);
           }
-        } catch (Exception e) {
+        } else {
           Attendee attendee = null;
           if (username.contains("@")) {
             attendee = new Attendee(username.split("@")[0], username);
@@ -657,6 +801,23 @@ public class CalendarConverterService {
     }
   }
 
+  private static User getPartacipantUser(UserHandler userHandler, String partacipant) {
+    ParticipantCache.CachedValue<User> cachedUser = ParticipantCache.getUser(partacipant);
+    if (cachedUser != null) {
+      return cachedUser.getValue();
+    }
+    try {
+      User user = userHandler.findUserByName(partacipant);
+      ParticipantCache.putUser(partacipant, user);
+      return user;
+    } catch (Exception e) {
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("exception occured while trying to get user " + partacipant, e);
+      }
+      return null;
+    }
+  }
+
   private static boolean containsAttendee(AttendeeCollection attendees, String email) {
     for (Attendee attendee : attendees) {
       if (attendee.getAddress().equals(email)) {
@@ -703,6 +864,10 @@ public class CalendarConverterService {
   }
 
   private static String getPartacipantUserName(UserHandler userHandler, Query query, Attendee attendee) {
+    ParticipantCache.CachedValue<String> cachedUsername = ParticipantCache.getUsername(attendee.getAddress());
+    if (cachedUsername != null) {
+      return cachedUsername.getValue();
+    }
     String username = null;
     query.setEmail(attendee.getAddress());
     try {
@@ -718,6 +883,8 @@ public class CalendarConverterService {
       } else {
         username = listAccess.load(0, 1)[0].getUserName();
       }
+      // Cache external and ambiguous emails too
+      ParticipantCache.putUsername(attendee.getAddress(), username);
     } catch (Exception e) {
       if (LOG.isTraceEnabled()) {
         LOG.trace("exception occured while trying to get user with email " + attendee.getAddress(), e);
@@ -727,12 +894,16 @@ public class CalendarConverterService {
   }
 
   private static void setAppointmentPriority(Appointment appointment, CalendarEvent calendarEvent) throws Exception {
+    Importance importance = null;
     if (calendarEvent.getPriority() == null || calendarEvent.getPriority().equals(CalendarEvent.PRIORITY_NONE) || calendarEvent.getPriority().equals(CalendarEvent.PRIORITY_NORMAL)) {
-      appointment.setImportance(Importance.Normal);
+      importance = Importance.Normal;
     } else if (calendarEvent.getPriority().equals(CalendarEvent.PRIORITY_LOW)) {
-      appointment.setImportance(Importance.Low);
+      importance = Importance.Low;
     } else if (calendarEvent.getPriority().equals(CalendarEvent.PRIORITY_HIGH)) {
-      appointment.setImportance(Importance.High);
+      importance = Importance.High;
+    }
+    if (importance != null && isPropertyChanged(appointment, AppointmentSchema.Importance, importance)) {
+      appointment.setImportance(importance);
     }
   }
 
@@ -769,7 +940,9 @@ public class CalendarConverterService {
     } else {
       calendar.setTime(convertToDefaultTimeZoneFormat(calendarEvent.getFromDateTime()));
     }
-    appointment.setStart(calendar.getTime());
+    if (isPropertyChanged(appointment, AppointmentSchema.Start, calendar.getTime())) {
+      appointment.setStart(calendar.getTime());
+    }
 
     if (isAllDay) {
       calendar.setTime(calendarEvent.getToDateTime());
@@ -782,8 +955,12 @@ public class CalendarConverterService {
     } else {
       calendar.setTime(convertToDefaultTimeZoneFormat(calendarEvent.getToDateTime()));
     }
-    appointment.setEnd(calendar.getTime());
-    appointment.setIsAllDayEvent(isAllDay);
+    if (isPropertyChanged(appointment, AppointmentSchema.End, calendar.getTime())) {
+      appointment.setEnd(calendar.getTime());
+    }
+    if (isPropertyChanged(appointment, AppointmentSchema.IsAllDayEvent, isAllDay)) {
+      appointment.setIsAllDayEvent(isAllDay);
+    }
   }
 
   private static void setEventDates(CalendarEvent calendarEvent, Appointment appointment, TimeZone timeZone) throws ServiceLocalException {
@@ -817,31 +994,27 @@ public class CalendarConverterService {
   }
 
   private static Date convertToDefaultTimeZoneFormat(Date date) {
-    int originalOffset = TimeZone.getDefault().getOffset(date.getTime()) / 60000;
-
-    Calendar calendar = Calendar.getInstance();
-    calendar.setTime(date);
-    calendar.add(Calendar.MINUTE, -originalOffset);
-
-    return calendar.getTime();
+    return DateConverter.convertToDefaultTimeZoneFormat(date);
   }
 
   private static Date convertToUserTimeZoneFormat(Date date, TimeZone timeZone) {
-    int originalOffset = TimeZone.getDefault().getOffset(date.getTime()) / 60000;
-    int userTZOffset = timeZone.getRawOffset() / 60000;
-
-    Calendar calendar = Calendar.getInstance();
-    calendar.setTime(date);
-    calendar.add(Calendar.MINUTE, originalOffset - userTZOffset);
-
-    return calendar.getTime();
+    return DateConverter.convertToUserTimeZoneFormat(date, timeZone);
   }
 
   private static void setAppointmentCategory(Appointment appointment, CalendarEvent calendarEvent) throws Exception {
+    boolean hasCategory = calendarEvent.getEventCategoryName() != null && !calendarEvent.getEventCategoryName().isEmpty()
+        && !calendarEvent.getEventCategoryId().equals(NewUserListener.DEFAULT_EVENTCATEGORY_ID_ALL);
+    if (!appointment.isNew() && appointment.getCategories() != null) {
+      StringList categories = appointment.getCategories();
+      if (hasCategory ? (categories.getSize() == 1 && categories.contains(calendarEvent.getEventCategoryName())) : categories.getSize() == 0) {
+        // Category not modified
+        return;
+      }
+    }
     if (appointment.getCategories() != null) {
       appointment.getCategories().clearList();
     }
-    if (calendarEvent.getEventCategoryName() != null && !calendarEvent.getEventCategoryName().isEmpty() && !calendarEvent.getEventCategoryId().equals(NewUserListener.DEFAULT_EVENTCATEGORY_ID_ALL)) {
+    if (hasCategory) {
       if (appointment.getCategories() == null) {
         StringList stringList = new StringList();
         appointment.setCategories(stringList);
@@ -856,13 +1029,19 @@ public class CalendarConverterService {
     if (appointment.getCategories() != null && appointment.getCategories().getSize() > 0) {
       String categoryName = appointment.getCategories().getString(0);
       if (categoryName != null && !categoryName.isEmpty()) {
-        EventCategory category = getEventCategoryByName(storage, username, getCategoryName(categoryName));
-        if (category == null) {
-          category = new EventCategory();
-          category.setDataInit(false);
-          category.setName(getCategoryName(categoryName));
-          category.setId(getCategoryName(categoryName));
-          storage.saveEventCategory(username, category, true);
+        Map<String, EventCategory> eventCategories = getUserEventCategories(storage, username);
+        EventCategory category = null;
+        // Folders of the same user may be synchronized in parallel
+        synchronized (eventCategories) {
+          category = eventCategories.get(getCategoryName(categoryName).toLowerCase());
+          if (category == null) {
+            category = new EventCategory();
+            category.setDataInit(false);
+            category.setName(getCategoryName(categoryName));
+            category.setId(getCategoryName(categoryName));
+            storage.saveEventCategory(username, category, true);
+            eventCategories.put(category.getName().toLowerCase(), category);
+          }
         }
         calendarEvent.setEventCategoryId(category.getId());
         calendarEvent.setEventCategoryName(category.getName());
@@ -876,27 +1055,89 @@ public class CalendarConverterService {
       AttachmentCollection attachmentCollection = appointment.getAttachments();
       assert attachmentCollection != null;
       for (org.exoplatform.calendar.service.Attachment attachment : attachments) {
+        if (containsAttachment(attachmentCollection, attachment)) {
+          continue;
+        }
         FileAttachment fileAttachment = attachmentCollection.addFileAttachment(attachment.getName(), attachment.getInputStream());
         fileAttachment.setContentType(attachment.getMimeType());
       }
     }
   }
 
+  /**
+   * 
+   * Sets the size, in bytes, of the attachments of an event kept in memory
+   * while synchronized to eXo, the next ones are spooled to temporary files.
+   * 
+   * @param threshold
+   */
+  public static void setAttachmentSpoolThreshold(long threshold) {
+    attachmentSpoolThreshold = threshold;
+  }
+
+  /**
+   * 
+   * Deletes the temporary files of attachments spooled by the current thread,
+   * whether their events were stored or not.
+   * 
+   */
+  public static void releaseSpooledAttachments() {
+    List<TemporaryFileInputStream> spooledAttachments = spooledAttachmentsThreadLocal.get();
+    if (spooledAttachments == null) {
+      return;
+    }
+    spooledAttachmentsThreadLocal.remove();
+    for (TemporaryFileInputStream spooledAttachment : spooledAttachments) {
+      try {
+        spooledAttachment.close();
+      } catch (IOException e) {
+        LOG.warn("Unable to close temporary attachment file: " + spooledAttachment.file.getAbsolutePath(), e);
+      }
+    }
+  }
+
+  /**
+   * 
+   * Sets the attachments of the Exchange appointment to the eXo event.
+   * Unchanged attachments aren't downloaded again. The others are kept in
+   * memory until their total size exceeds the spool threshold, then they are
+   * spooled to temporary files. The spool only bounds what is kept until the
+   * event is stored: EWS 1.2 reads the attachment content with
+   * EwsXmlReader.readBase64ElementValue, which decodes the whole element in
+   * memory before writing it to the output stream. So downloading a 20 MB
+   * attachment still costs 70 MB of heap or more, with the base64 text and
+   * the decoded bytes, whatever the threshold.
+   * 
+   * @param calendarEvent
+   * @param appointment
+   * @throws Exception
+   */
   private static void setEventAttachements(CalendarEvent calendarEvent, Appointment appointment) throws Exception {
     if (appointment.getHasAttachments()) {
       Iterator<Attachment> attachmentIterator = appointment.getAttachments().iterator();
+      // Size of the attachments of this event kept in memory
+      long bufferedSize = 0;
+      List<org.exoplatform.calendar.service.Attachment> existingAttachments = calendarEvent.getAttachment();
       List<org.exoplatform.calendar.service.Attachment> attachments = new ArrayList<org.exoplatform.calendar.service.Attachment>();
       while (attachmentIterator.hasNext()) {
         Attachment attachment = attachmentIterator.next();
         if (attachment instanceof FileAttachment) {
           FileAttachment fileAttachment = (FileAttachment) attachment;
-          org.exoplatform.calendar.service.Attachment eXoAttachment = new org.exoplatform.calendar.service.Attachment();
           if (fileAttachment.getSize() == 0) {
             continue;
           }
-          ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-          fileAttachment.load(outputStream);
-          eXoAttachment.setInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+          // Don't download again an attachment that didn't change
+          org.exoplatform.calendar.service.Attachment eXoAttachment = getUnchangedAttachment(existingAttachments, fileAttachment);
+          if (eXoAttachment != null) {
+            attachments.add(eXoAttachment);
+            continue;
+          }
+          eXoAttachment = new org.exoplatform.calendar.service.Attachment();
+          boolean spool = bufferedSize + fileAttachment.getSize() > attachmentSpoolThreshold;
+          eXoAttachment.setInputStream(loadAttachmentContent(fileAttachment, spool));
+          if (!spool) {
+            bufferedSize += fileAttachment.getSize();
+          }
           eXoAttachment.setMimeType(fileAttachment.getContentType());
           eXoAttachment.setName(fileAttachment.getName());
           eXoAttachment.setSize(fileAttachment.getSize());
@@ -910,19 +1151,97 @@ public class CalendarConverterService {
     }
   }
 
+  private static org.exoplatform.calendar.service.Attachment getUnchangedAttachment(List<org.exoplatform.calendar.service.Attachment> existingAttachments, FileAttachment fileAttachment)
+      throws Exception {
+    if (existingAttachments == null || fileAttachment.getLastModifiedTime() == null) {
+      return null;
+    }
+    for (org.exoplatform.calendar.service.Attachment existingAttachment : existingAttachments) {
+      if (existingAttachment.getName() != null && existingAttachment.getName().equals(fileAttachment.getName()) && existingAttachment.getSize() == fileAttachment.getSize()
+          && existingAttachment.getLastModified() != null && !existingAttachment.getLastModified().getTime().before(fileAttachment.getLastModifiedTime())) {
+        return existingAttachment;
+      }
+    }
+    return null;
+  }
+
+  private static InputStream loadAttachmentContent(FileAttachment fileAttachment, boolean spool) throws Exception {
+    if (!spool) {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream(fileAttachment.getSize());
+      fileAttachment.load(outputStream);
+      return new ByteArrayInputStream(outputStream.toByteArray());
+    }
+    File file = File.createTempFile("exchange-attachment", ".tmp");
+    OutputStream outputStream = new FileOutputStream(file);
+    TemporaryFileInputStream inputStream = null;
+    try {
+      fileAttachment.load(outputStream);
+      outputStream.close();
+      inputStream = new TemporaryFileInputStream(file);
+    } finally {
+      if (inputStream == null) {
+        outputStream.close();
+        file.delete();
+      }
+    }
+    List<TemporaryFileInputStream> spooledAttachments = spooledAttachmentsThreadLocal.get();
+    if (spooledAttachments == null) {
+      spooledAttachments = new ArrayList<TemporaryFileInputStream>();
+      spooledAttachmentsThreadLocal.set(spooledAttachments);
+    }
+    spooledAttachments.add(inputStream);
+    return inputStream;
+  }
+
+  /**
+   * 
+   * Stream of a spooled attachment, the temporary file is deleted when the
+   * stream is closed.
+   * 
+   */
+  private static class TemporaryFileInputStream extends FileInputStream {
+    private final File file;
+
+    TemporaryFileInputStream(File file) throws IOException {
+      super(file);
+      this.file = file;
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      if (file.exists() && !file.delete() && LOG.isDebugEnabled()) {
+        LOG.debug("Unable to delete temporary attachment file: " + file.getAbsolutePath());
+      }
+    }
+  }
+
+  private static boolean containsAttachment(AttachmentCollection attachmentCollection, org.exoplatform.calendar.service.Attachment attachment) throws Exception {
+    for (Attachment existingAttachment : attachmentCollection) {
+      if (existingAttachment.getName() != null && existingAttachment.getName().equals(attachment.getName()) && existingAttachment.getSize() == attachment.getSize()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private static void setAppointmentStatus(Appointment appointment, CalendarEvent calendarEvent) throws Exception {
     String status = (calendarEvent.getStatus() == null || calendarEvent.getStatus().isEmpty()) ? calendarEvent.getEventState() : calendarEvent.getStatus();
     if (status == null) {
       status = "";
     }
+    LegacyFreeBusyStatus freeBusyStatus = null;
     if (status.equals(CalendarEvent.ST_AVAILABLE)) {
-      appointment.setLegacyFreeBusyStatus(LegacyFreeBusyStatus.Free);
+      freeBusyStatus = LegacyFreeBusyStatus.Free;
     } else if (status.equals(CalendarEvent.ST_BUSY)) {
-      appointment.setLegacyFreeBusyStatus(LegacyFreeBusyStatus.Busy);
+      freeBusyStatus = LegacyFreeBusyStatus.Busy;
     } else if (status.equals(CalendarEvent.ST_OUTSIDE)) {
-      appointment.setLegacyFreeBusyStatus(LegacyFreeBusyStatus.OOF);
+      freeBusyStatus = LegacyFreeBusyStatus.OOF;
     } else {
-      appointment.setLegacyFreeBusyStatus(LegacyFreeBusyStatus.NoData);
+      freeBusyStatus = LegacyFreeBusyStatus.NoData;
+    }
+    if (isPropertyChanged(appointment, AppointmentSchema.LegacyFreeBusyStatus, freeBusyStatus)) {
+      appointment.setLegacyFreeBusyStatus(freeBusyStatus);
     }
   }
 
@@ -969,17 +1288,41 @@ public class CalendarConverterService {
     }
   }
 
-  private static EventCategory getEventCategoryByName(JCRDataStorage storage, String username, String eventCategoryName) throws Exception {
-    for (EventCategory ev : storage.getEventCategories(username)) {
-      if (ev.getName().equalsIgnoreCase(eventCategoryName)) {
-        return ev;
+  /**
+   * 
+   * Clears event categories of the user loaded during the synchronization
+   * cycle.
+   * 
+   * @param username
+   */
+  public static void clearEventCategoriesCache(String username) {
+    eventCategoriesByUser.remove(username);
+  }
+
+  private static Map<String, EventCategory> getUserEventCategories(JCRDataStorage storage, String username) throws Exception {
+    Map<String, EventCategory> eventCategories = eventCategoriesByUser.get(username);
+    if (eventCategories == null) {
+      eventCategories = new HashMap<String, EventCategory>();
+      for (EventCategory ev : storage.getEventCategories(username)) {
+        eventCategories.put(ev.getName().toLowerCase(), ev);
+      }
+      Map<String, EventCategory> existingEventCategories = eventCategoriesByUser.putIfAbsent(username, eventCategories);
+      if (existingEventCategories != null) {
+        eventCategories = existingEventCategories;
       }
     }
-    return null;
+    return eventCategories;
   }
 
   private static void setApoinementSummary(Appointment appointment, CalendarEvent event) throws Exception, ServiceLocalException {
     if (event.getDescription() != null && !event.getDescription().isEmpty()) {
+      if (!appointment.isNew()) {
+        OutParam<Object> oldBody = new OutParam<Object>();
+        if (appointment.tryGetProperty(AppointmentSchema.Body, oldBody) && oldBody.getParam() != null
+            && event.getDescription().equals(MessageBody.getStringFromMessageBody((MessageBody) oldBody.getParam()))) {
+          return;
+        }
+      }
       appointment.setBody(MessageBody.getMessageBodyFromText(event.getDescription()));
     }
   }
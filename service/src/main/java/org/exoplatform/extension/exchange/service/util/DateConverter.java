@@ -0,0 +1,177 @@
+package org.exoplatform.extension.exchange.service.util;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ *
+ * Date and timezone conversions between eXo and Exchange formats, computed
+ * with epoch milliseconds arithmetic. The server timezone is resolved once,
+ * its offset rules are immutable and can be used by concurrent
+ * synchronizations without locking.
+ *
+ * @author Boubaker Khanfir
+ *
+ */
+public class DateConverter {
+
+  private static final long MINUTE_IN_MILLIS = 60 * 1000L;
+
+  private static final long DAY_IN_MILLIS = 24 * 60 * MINUTE_IN_MILLIS;
+
+  private static final TimeZone DEFAULT_TIME_ZONE = TimeZone.getDefault();
+
+  private DateConverter() {}
+
+  /**
+   *
+   * Converts the date to the date having, in server timezone, the same day and
+   * time as the date in UTC. Milliseconds are ignored.
+   *
+   * @param date
+   * @return
+   */
+  public static Date convertDateToUTC(Date date) {
+    return convertDateToUTC(date, DEFAULT_TIME_ZONE);
+  }
+
+  static Date convertDateToUTC(Date date, TimeZone serverTimeZone) {
+    long utcTime = date.getTime() - floorMod(date.getTime(), 1000);
+    return new Date(toUTCTime(utcTime, serverTimeZone));
+  }
+
+  /**
+   *
+   * @param date
+   *          Exchange date
+   * @return the date shifted by server timezone offset
+   */
+  public static Date getExoDateFromExchangeFormat(Date date) {
+    return getExoDateFromExchangeFormat(date, DEFAULT_TIME_ZONE);
+  }
+
+  static Date getExoDateFromExchangeFormat(Date date, TimeZone serverTimeZone) {
+    return new Date(date.getTime() + getOffset(serverTimeZone, date.getTime()));
+  }
+
+  /**
+   *
+   * @param date
+   *          eXo date
+   * @return the date shifted back by server timezone offset
+   */
+  public static Date convertToDefaultTimeZoneFormat(Date date) {
+    return convertToDefaultTimeZoneFormat(date, DEFAULT_TIME_ZONE);
+  }
+
+  static Date convertToDefaultTimeZoneFormat(Date date, TimeZone serverTimeZone) {
+    return new Date(date.getTime() - getOffset(serverTimeZone, date.getTime()));
+  }
+
+  /**
+   *
+   * @param date
+   * @param timeZone
+   *          user calendar timezone
+   * @return the date shifted from server timezone offset to user timezone raw
+   *         offset
+   */
+  public static Date convertToUserTimeZoneFormat(Date date, TimeZone timeZone) {
+    return convertToUserTimeZoneFormat(date, timeZone, DEFAULT_TIME_ZONE);
+  }
+
+  static Date convertToUserTimeZoneFormat(Date date, TimeZone timeZone, TimeZone serverTimeZone) {
+    long userTZOffset = timeZone.getRawOffset() / MINUTE_IN_MILLIS * MINUTE_IN_MILLIS;
+    return new Date(date.getTime() + getOffset(serverTimeZone, date.getTime()) - userTZOffset);
+  }
+
+  /**
+   *
+   * @param date1
+   * @param date2
+   * @return true if both dates are in the same day in server timezone
+   */
+  public static boolean isSameDate(Date date1, Date date2) {
+    return isSameDate(date1, date2, DEFAULT_TIME_ZONE);
+  }
+
+  static boolean isSameDate(Date date1, Date date2, TimeZone serverTimeZone) {
+    return getDayNumber(date1.getTime(), serverTimeZone) == getDayNumber(date2.getTime(), serverTimeZone);
+  }
+
+  /**
+   *
+   * @param date
+   * @return the start of the day of the date in server timezone
+   */
+  public static Date getStartOfDay(Date date) {
+    return getStartOfDay(date, DEFAULT_TIME_ZONE);
+  }
+
+  static Date getStartOfDay(Date date, TimeZone serverTimeZone) {
+    return new Date(toUTCTime(getDayNumber(date.getTime(), serverTimeZone) * DAY_IN_MILLIS, serverTimeZone));
+  }
+
+  /**
+   *
+   * @param date
+   * @param timeZone
+   * @return number of minutes since the start of the day of the date in the
+   *         timezone
+   */
+  public static int getMinuteOfDay(Date date, TimeZone timeZone) {
+    long localTime = date.getTime() + timeZone.getOffset(date.getTime());
+    return (int) (floorMod(localTime, DAY_IN_MILLIS) / MINUTE_IN_MILLIS);
+  }
+
+  /**
+   * Converts epoch milliseconds to local time of server timezone.
+   */
+  static long toLocalTime(long time) {
+    return time + DEFAULT_TIME_ZONE.getOffset(time);
+  }
+
+  /**
+   * Converts a local time of server timezone to epoch milliseconds.
+   */
+  static long toUTCTime(long localTime) {
+    return toUTCTime(localTime, DEFAULT_TIME_ZONE);
+  }
+
+  private static long getDayNumber(long time, TimeZone timeZone) {
+    long localTime = time + timeZone.getOffset(time);
+    return (localTime - floorMod(localTime, DAY_IN_MILLIS)) / DAY_IN_MILLIS;
+  }
+
+  /**
+   * Converts a local time of the timezone to epoch milliseconds.
+   */
+  static long toUTCTime(long localTime, TimeZone timeZone) {
+    long offset = timeZone.getOffset(localTime - timeZone.getRawOffset());
+    long time = localTime - offset;
+    long actualOffset = timeZone.getOffset(time);
+    if (actualOffset == offset) {
+      return time;
+    }
+    long otherTime = localTime - actualOffset;
+    if (timeZone.getOffset(otherTime) == actualOffset) {
+      return otherTime;
+    }
+    // Local time skipped by a daylight saving transition, use the offset
+    // before the transition like lenient calendars
+    return localTime - Math.min(offset, actualOffset);
+  }
+
+  /**
+   * Offset of the timezone truncated to minutes.
+   */
+  private static long getOffset(TimeZone timeZone, long time) {
+    return timeZone.getOffset(time) / MINUTE_IN_MILLIS * MINUTE_IN_MILLIS;
+  }
+
+  private static long floorMod(long value, long divisor) {
+    long mod = value % divisor;
+    return mod < 0 ? mod + divisor : mod;
+  }
+
+}
@@ -0,0 +1,243 @@
+package org.exoplatform.extension.exchange.service.util;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import microsoft.exchange.webservices.data.Appointment;
+import microsoft.exchange.webservices.data.AppointmentSchema;
+import microsoft.exchange.webservices.data.BasePropertySet;
+import microsoft.exchange.webservices.data.DayOfTheWeek;
+import microsoft.exchange.webservices.data.PropertySet;
+import microsoft.exchange.webservices.data.Recurrence;
+import microsoft.exchange.webservices.data.Recurrence.DailyPattern;
+import microsoft.exchange.webservices.data.Recurrence.WeeklyPattern;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ *
+ * Resolves the occurence of an Exchange recurrent appointment in a given day.
+ * The occurence index is computed from the recurrence pattern when possible,
+ * else it's retrieved from an index-to-date table cached per master
+ * appointment, so only the target occurence is bound.
+ *
+ * @author Boubaker Khanfir
+ *
+ */
+public class OccurenceResolver {
+
+  private final static Log LOG = ExoLogger.getLogger(OccurenceResolver.class);
+
+  private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+
+  private static final int MAX_CACHED_TABLES = 500;
+
+  // Map of master appointment id, table of its occurences indexes. The least
+  // recently used tables are evicted, so tables of the series being
+  // synchronized are kept
+  private static final Map<String, OccurenceIndexTable> OCCURENCE_INDEX_TABLES = new LinkedHashMap<String, OccurenceIndexTable>(16, 0.75f, true) {
+    private static final long serialVersionUID = 6270529514342127823L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, OccurenceIndexTable> eldest) {
+      return size() > MAX_CACHED_TABLES;
+    }
+  };
+
+  private OccurenceResolver() {}
+
+  /**
+   *
+   * Gets the occurence of the master appointment in the day of occDate.
+   *
+   * @param masterAppointment
+   *          Exchange master appointment loaded with its recurrence
+   * @param occDate
+   *          start of the day of the occurence
+   * @return the occurence or null if not found
+   * @throws Exception
+   */
+  public static Appointment getAppointmentOccurence(Appointment masterAppointment, Date occDate) throws Exception {
+    Recurrence recurrence = masterAppointment.getRecurrence();
+    Date endDate = recurrence.getEndDate();
+    if (endDate != null && occDate.getTime() > endDate.getTime()) {
+      return null;
+    }
+    Integer index = computeOccurenceIndex(recurrence, occDate);
+    if (index != null) {
+      Appointment appointment = bindOccurence(masterAppointment, index, new PropertySet(BasePropertySet.FirstClassProperties));
+      if (appointment != null && CalendarConverterService.isSameDate(occDate, CalendarConverterService.getExoDateFromExchangeFormat(appointment.getStart()))) {
+        return appointment;
+      }
+    }
+    index = getOccurenceIndexTable(masterAppointment).getIndex(masterAppointment, occDate);
+    if (index == null) {
+      return null;
+    }
+    return bindOccurence(masterAppointment, index, new PropertySet(BasePropertySet.FirstClassProperties));
+  }
+
+  /**
+   *
+   * Computes the index of the occurence from daily and weekly patterns.
+   *
+   * @param recurrence
+   * @param occDate
+   * @return the index, or null if it can't be computed from the pattern
+   * @throws Exception
+   */
+  private static Integer computeOccurenceIndex(Recurrence recurrence, Date occDate) throws Exception {
+    Calendar indexCalendar = getDayCalendar(recurrence.getStartDate());
+    Calendar occCalendar = getDayCalendar(occDate);
+    if (occCalendar.before(indexCalendar)) {
+      return null;
+    }
+    if (recurrence instanceof DailyPattern) {
+      int interval = ((DailyPattern) recurrence).getInterval();
+      long days = Math.round((double) (occCalendar.getTimeInMillis() - indexCalendar.getTimeInMillis()) / DAY_IN_MILLIS);
+      if (interval < 1 || days % interval != 0) {
+        return null;
+      }
+      return (int) (days / interval) + 1;
+    } else if (recurrence instanceof WeeklyPattern && ((WeeklyPattern) recurrence).getInterval() == 1) {
+      WeeklyPattern weeklyPattern = (WeeklyPattern) recurrence;
+      if (!isPatternDay(weeklyPattern, occCalendar.get(Calendar.DAY_OF_WEEK))) {
+        return null;
+      }
+      // Count pattern days between the start of the recurrence and the
+      // occurence, no remote call is needed
+      int index = 0;
+      while (!indexCalendar.after(occCalendar)) {
+        if (isPatternDay(weeklyPattern, indexCalendar.get(Calendar.DAY_OF_WEEK))) {
+          index++;
+        }
+        indexCalendar.add(Calendar.DATE, 1);
+      }
+      return index;
+    }
+    return null;
+  }
+
+  private static boolean isPatternDay(WeeklyPattern weeklyPattern, int dayOfWeek) {
+    for (DayOfTheWeek dayOfTheWeek : weeklyPattern.getDaysOfTheWeek()) {
+      switch (dayOfTheWeek) {
+      case Day:
+        return true;
+      case Weekday:
+        if (dayOfWeek != Calendar.SATURDAY && dayOfWeek != Calendar.SUNDAY) {
+          return true;
+        }
+        break;
+      case WeekendDay:
+        if (dayOfWeek == Calendar.SATURDAY || dayOfWeek == Calendar.SUNDAY) {
+          return true;
+        }
+        break;
+      default:
+        if (dayOfTheWeek.ordinal() + Calendar.SUNDAY == dayOfWeek) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static OccurenceIndexTable getOccurenceIndexTable(Appointment masterAppointment) throws Exception {
+    String masterId = masterAppointment.getId().getUniqueId();
+    String changeKey = masterAppointment.getId().getChangeKey();
+    synchronized (OCCURENCE_INDEX_TABLES) {
+      OccurenceIndexTable table = OCCURENCE_INDEX_TABLES.get(masterId);
+      // The change key is modified when the series is modified
+      if (table == null || (changeKey != null && !changeKey.equals(table.changeKey))) {
+        table = new OccurenceIndexTable(changeKey);
+        OCCURENCE_INDEX_TABLES.put(masterId, table);
+      }
+      return table;
+    }
+  }
+
+  private static Appointment bindOccurence(Appointment masterAppointment, int index, PropertySet propertySet) {
+    try {
+      return Appointment.bindToOccurrence(masterAppointment.getService(), masterAppointment.getId(), index, propertySet);
+    } catch (Exception e) {
+      // Recurence not found, can be deleted from Exchange.
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Error while getting occurence with index: " + index + " of master appointment with id: " + masterAppointment.getId().getUniqueId(), e);
+      }
+      return null;
+    }
+  }
+
+  private static Calendar getDayCalendar(Date date) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTime(date);
+    calendar.set(Calendar.HOUR_OF_DAY, 0);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    return calendar;
+  }
+
+  private static int getDayKey(Date date) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTime(date);
+    return calendar.get(Calendar.YEAR) * 10000 + calendar.get(Calendar.MONTH) * 100 + calendar.get(Calendar.DATE);
+  }
+
+  /**
+   *
+   * Table of occurences indexes of a master appointment by day, filled
+   * incrementally while searching an occurence that can't be computed from the
+   * recurrence pattern.
+   *
+   */
+  private static class OccurenceIndexTable {
+    private final String changeKey;
+    private final Map<Integer, Integer> indexesByDay = new HashMap<Integer, Integer>();
+    private int lastIndex = 0;
+    private Calendar indexCalendar = null;
+
+    OccurenceIndexTable(String changeKey) {
+      this.changeKey = changeKey;
+    }
+
+    synchronized Integer getIndex(Appointment masterAppointment, Date occDate) throws Exception {
+      int occDayKey = getDayKey(occDate);
+      Integer index = indexesByDay.get(occDayKey);
+      if (index != null) {
+        return index;
+      }
+      Recurrence recurrence = masterAppointment.getRecurrence();
+      Date endDate = recurrence.getEndDate();
+      Integer nbOccurences = recurrence.getNumberOfOccurrences();
+      if (indexCalendar == null) {
+        indexCalendar = Calendar.getInstance();
+        indexCalendar.setTime(recurrence.getStartDate());
+      }
+      // Continue from the last scanned occurence
+      while (!occDate.before(indexCalendar.getTime()) && (endDate == null || !indexCalendar.getTime().after(endDate))
+          && (nbOccurences == null || lastIndex < nbOccurences)) {
+        lastIndex++;
+        Appointment tmpAppointment = bindOccurence(masterAppointment, lastIndex, new PropertySet(AppointmentSchema.Start));
+        if (tmpAppointment == null) {
+          // increment date
+          indexCalendar.add(Calendar.DATE, 1);
+          continue;
+        }
+        Date date = CalendarConverterService.getExoDateFromExchangeFormat(tmpAppointment.getStart());
+        indexCalendar.setTime(date);
+        int dayKey = getDayKey(date);
+        indexesByDay.put(dayKey, lastIndex);
+        if (dayKey == occDayKey) {
+          return lastIndex;
+        }
+      }
+      return null;
+    }
+  }
+
+}
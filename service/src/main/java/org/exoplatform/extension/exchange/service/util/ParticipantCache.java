@@ -0,0 +1,157 @@
+package org.exoplatform.extension.exchange.service.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exoplatform.services.organization.User;
+
+/**
+ *
+ * Cache shared by all users synchronizations of eXo usernames resolved from
+ * Exchange attendees emails, and of eXo users resolved from eXo events
+ * participants. Emails and usernames that don't correspond to an eXo user are
+ * cached too, to not query the organization service for external attendees
+ * each time. Entries expire after a time to live, and the least recently used
+ * entries are evicted when the cache is full.
+ *
+ * @author Boubaker Khanfir
+ *
+ */
+public class ParticipantCache {
+
+  private static volatile int maxSize = 5000;
+
+  private static volatile long timeToLive = 30 * 60 * 1000L;
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong negativeHits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  // Map of email, eXo username
+  private static final Map<String, CachedValue<String>> USERNAMES_BY_EMAIL = newLRUMap();
+
+  // Map of eXo username, eXo user
+  private static final Map<String, CachedValue<User>> USERS_BY_USERNAME = newLRUMap();
+
+  private ParticipantCache() {}
+
+  /**
+   *
+   * Sets the cache limits.
+   *
+   * @param size
+   *          maximum number of cached entries
+   * @param timeToLiveInMillis
+   *          time after which an entry is resolved again
+   */
+  public static void configure(int size, long timeToLiveInMillis) {
+    maxSize = size;
+    timeToLive = timeToLiveInMillis;
+    clear();
+  }
+
+  /**
+   *
+   * @param email
+   * @return cached resolution of the email, with a null value if no eXo user
+   *         has this email, or null if the email isn't cached
+   */
+  public static CachedValue<String> getUsername(String email) {
+    return getCachedValue(USERNAMES_BY_EMAIL, email.toLowerCase());
+  }
+
+  /**
+   *
+   * @param email
+   * @param username
+   *          eXo username, null if the email doesn't correspond to an eXo user
+   */
+  public static void putUsername(String email, String username) {
+    USERNAMES_BY_EMAIL.put(email.toLowerCase(), new CachedValue<String>(username, System.currentTimeMillis() + timeToLive));
+  }
+
+  /**
+   *
+   * @param username
+   * @return cached eXo user, with a null value if no eXo user has this
+   *         username, or null if the username isn't cached
+   */
+  public static CachedValue<User> getUser(String username) {
+    return getCachedValue(USERS_BY_USERNAME, username);
+  }
+
+  /**
+   *
+   * @param username
+   * @param user
+   *          eXo user, null if the username doesn't correspond to an eXo user
+   */
+  public static void putUser(String username, User user) {
+    USERS_BY_USERNAME.put(username, new CachedValue<User>(user, System.currentTimeMillis() + timeToLive));
+  }
+
+  public static void clear() {
+    USERNAMES_BY_EMAIL.clear();
+    USERS_BY_USERNAME.clear();
+  }
+
+  public static int getSize() {
+    return USERNAMES_BY_EMAIL.size() + USERS_BY_USERNAME.size();
+  }
+
+  public static long getHits() {
+    return hits.get();
+  }
+
+  public static long getNegativeHits() {
+    return negativeHits.get();
+  }
+
+  public static long getMisses() {
+    return misses.get();
+  }
+
+  private static <T> CachedValue<T> getCachedValue(Map<String, CachedValue<T>> map, String key) {
+    CachedValue<T> cachedValue = map.get(key);
+    if (cachedValue != null && cachedValue.expirationTime < System.currentTimeMillis()) {
+      map.remove(key);
+      cachedValue = null;
+    }
+    if (cachedValue == null) {
+      misses.incrementAndGet();
+    } else if (cachedValue.value == null) {
+      negativeHits.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return cachedValue;
+  }
+
+  private static <T> Map<String, CachedValue<T>> newLRUMap() {
+    return Collections.synchronizedMap(new LinkedHashMap<String, CachedValue<T>>(16, 0.75f, true) {
+      private static final long serialVersionUID = -2946713214542612335L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedValue<T>> eldest) {
+        return size() > maxSize;
+      }
+    });
+  }
+
+  public static class CachedValue<T> {
+    private final T value;
+    private final long expirationTime;
+
+    CachedValue(T value, long expirationTime) {
+      this.value = value;
+      this.expirationTime = expirationTime;
+    }
+
+    public T getValue() {
+      return value;
+    }
+  }
+
+}
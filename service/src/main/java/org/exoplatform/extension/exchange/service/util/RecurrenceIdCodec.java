@@ -0,0 +1,159 @@
+package org.exoplatform.extension.exchange.service.util;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *
+ * Formats and parses eXo occurences recurrence ids, with the pattern
+ * yyyyMMdd'T'HHmmss'Z' in server timezone, without SimpleDateFormat. Recently
+ * used recurrence ids are kept in small lock free caches, as the same ids are
+ * computed again and again while synchronizing a recurrent series.
+ *
+ * @author Boubaker Khanfir
+ *
+ */
+public class RecurrenceIdCodec {
+
+  private static final int RECURRENCE_ID_LENGTH = 16;
+
+  static final int CACHE_SIZE = 256;
+
+  private static final long SECOND_IN_MILLIS = 1000L;
+
+  private static final long DAY_IN_MILLIS = 24 * 60 * 60 * SECOND_IN_MILLIS;
+
+  private static final AtomicReferenceArray<CachedRecurrenceId> FORMAT_CACHE = new AtomicReferenceArray<CachedRecurrenceId>(CACHE_SIZE);
+
+  private static final AtomicReferenceArray<CachedRecurrenceId> PARSE_CACHE = new AtomicReferenceArray<CachedRecurrenceId>(CACHE_SIZE);
+
+  private RecurrenceIdCodec() {}
+
+  /**
+   *
+   * @param date
+   * @return recurrence id of the date
+   */
+  public static String format(Date date) {
+    long time = date.getTime();
+    time -= floorMod(time, SECOND_IN_MILLIS);
+    int index = getCacheIndex(Long.valueOf(time).hashCode());
+    CachedRecurrenceId cachedRecurrenceId = FORMAT_CACHE.get(index);
+    if (cachedRecurrenceId != null && cachedRecurrenceId.time == time) {
+      return cachedRecurrenceId.recurrenceId;
+    }
+    String recurrenceId = formatLocalTime(DateConverter.toLocalTime(time));
+    FORMAT_CACHE.set(index, new CachedRecurrenceId(time, recurrenceId));
+    return recurrenceId;
+  }
+
+  /**
+   *
+   * @param recurrenceId
+   * @return date of the recurrence id
+   * @throws ParseException
+   *           if the recurrence id doesn't match the pattern
+   */
+  public static Date parse(String recurrenceId) throws ParseException {
+    int index = getCacheIndex(recurrenceId.hashCode());
+    CachedRecurrenceId cachedRecurrenceId = PARSE_CACHE.get(index);
+    if (cachedRecurrenceId != null && cachedRecurrenceId.recurrenceId.equals(recurrenceId)) {
+      return new Date(cachedRecurrenceId.time);
+    }
+    long time = DateConverter.toUTCTime(parseLocalTime(recurrenceId));
+    PARSE_CACHE.set(index, new CachedRecurrenceId(time, recurrenceId));
+    return new Date(time);
+  }
+
+  private static String formatLocalTime(long localTime) {
+    long days = (localTime - floorMod(localTime, DAY_IN_MILLIS)) / DAY_IN_MILLIS;
+    int secondOfDay = (int) (floorMod(localTime, DAY_IN_MILLIS) / SECOND_IN_MILLIS);
+
+    // Civil date from days since epoch
+    long z = days + 719468;
+    long era = (z >= 0 ? z : z - 146096) / 146097;
+    long dayOfEra = z - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long mp = (5 * dayOfYear + 2) / 153;
+    int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+    int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+    int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+    char[] chars = new char[RECURRENCE_ID_LENGTH];
+    writeDigits(chars, 0, year, 4);
+    writeDigits(chars, 4, month, 2);
+    writeDigits(chars, 6, day, 2);
+    chars[8] = 'T';
+    writeDigits(chars, 9, secondOfDay / 3600, 2);
+    writeDigits(chars, 11, (secondOfDay / 60) % 60, 2);
+    writeDigits(chars, 13, secondOfDay % 60, 2);
+    chars[15] = 'Z';
+    return new String(chars);
+  }
+
+  private static long parseLocalTime(String recurrenceId) throws ParseException {
+    if (recurrenceId.length() != RECURRENCE_ID_LENGTH || recurrenceId.charAt(8) != 'T' || recurrenceId.charAt(15) != 'Z') {
+      throw new ParseException("Unparseable recurrence id: \"" + recurrenceId + "\"", 0);
+    }
+    int year = readDigits(recurrenceId, 0, 4);
+    int month = readDigits(recurrenceId, 4, 2);
+    int day = readDigits(recurrenceId, 6, 2);
+    int hour = readDigits(recurrenceId, 9, 2);
+    int minute = readDigits(recurrenceId, 11, 2);
+    int second = readDigits(recurrenceId, 13, 2);
+    if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59) {
+      throw new ParseException("Unparseable recurrence id: \"" + recurrenceId + "\"", 0);
+    }
+
+    // Days since epoch from civil date
+    long y = month <= 2 ? year - 1 : year;
+    long era = (y >= 0 ? y : y - 399) / 400;
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    long days = era * 146097 + dayOfEra - 719468;
+
+    return days * DAY_IN_MILLIS + ((hour * 60L + minute) * 60L + second) * SECOND_IN_MILLIS;
+  }
+
+  private static void writeDigits(char[] chars, int offset, int value, int length) {
+    for (int i = offset + length - 1; i >= offset; i--) {
+      chars[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  private static int readDigits(String value, int offset, int length) throws ParseException {
+    int result = 0;
+    for (int i = offset; i < offset + length; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        throw new ParseException("Unparseable recurrence id: \"" + value + "\"", i);
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  static int getCacheIndex(int hash) {
+    return (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+  }
+
+  private static long floorMod(long value, long divisor) {
+    long mod = value % divisor;
+    return mod < 0 ? mod + divisor : mod;
+  }
+
+  private static class CachedRecurrenceId {
+    private final long time;
+    private final String recurrenceId;
+
+    CachedRecurrenceId(long time, String recurrenceId) {
+      this.time = time;
+      this.recurrenceId = recurrenceId;
+    }
+  }
+
+}
@@ -0,0 +1,190 @@
+package org.exoplatform.extension.exchange.service.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * 
+ * Checks DateConverter against the SimpleDateFormat and Calendar based
+ * conversions it replaced.
+ * 
+ */
+public class DateConverterTest {
+
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  private static final TimeZone PARIS = TimeZone.getTimeZone("Europe/Paris");
+
+  private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+  // DST started at midnight, so the start of 2018-11-04 doesn't exist
+  private static final TimeZone SAO_PAULO = TimeZone.getTimeZone("America/Sao_Paulo");
+
+  private static final TimeZone[] TIME_ZONES = new TimeZone[] { UTC, PARIS, NEW_YORK, SAO_PAULO, TimeZone.getTimeZone("Australia/Lord_Howe"),
+      TimeZone.getTimeZone("Asia/Kolkata"), TimeZone.getTimeZone("Asia/Kathmandu"), TimeZone.getTimeZone("Pacific/Apia") };
+
+  // Sampling step not aligned on hours, minutes nor seconds
+  private static final long SAMPLING_STEP = 37 * 60 * 1000L + 1234L;
+
+  @Test
+  public void testConvertDateToUTCMatchesFormatRoundTrip() throws Exception {
+    for (TimeZone timeZone : TIME_ZONES) {
+      for (long time = utc(2015, 1, 1, 0, 0).getTime(); time < utc(2017, 1, 1, 0, 0).getTime(); time += SAMPLING_STEP) {
+        Date date = new Date(time);
+        assertEquals(timeZone.getID() + " " + date, legacyConvertDateToUTC(date, timeZone), DateConverter.convertDateToUTC(date, timeZone));
+      }
+    }
+  }
+
+  @Test
+  public void testConvertDateToUTCInDaylightSavingGap() throws Exception {
+    // 02:30 is skipped in Paris on 2015-03-29, lenient calendars use the
+    // offset before the transition: 02:30 CET is 03:30 CEST
+    Date date = utc(2015, 3, 29, 2, 30);
+    assertEquals(utc(2015, 3, 29, 1, 30), DateConverter.convertDateToUTC(date, PARIS));
+    assertEquals(legacyConvertDateToUTC(date, PARIS), DateConverter.convertDateToUTC(date, PARIS));
+
+    date = utc(2015, 3, 8, 2, 30);
+    assertEquals(legacyConvertDateToUTC(date, NEW_YORK), DateConverter.convertDateToUTC(date, NEW_YORK));
+  }
+
+  @Test
+  public void testConvertDateToUTCInDaylightSavingOverlap() throws Exception {
+    // 02:30 happens twice in Paris on 2015-10-25, the standard time one is
+    // used: 02:30 CET
+    Date date = utc(2015, 10, 25, 2, 30);
+    assertEquals(utc(2015, 10, 25, 1, 30), DateConverter.convertDateToUTC(date, PARIS));
+    assertEquals(legacyConvertDateToUTC(date, PARIS), DateConverter.convertDateToUTC(date, PARIS));
+
+    date = utc(2015, 11, 1, 1, 30);
+    assertEquals(utc(2015, 11, 1, 6, 30), DateConverter.convertDateToUTC(date, NEW_YORK));
+    assertEquals(legacyConvertDateToUTC(date, NEW_YORK), DateConverter.convertDateToUTC(date, NEW_YORK));
+  }
+
+  @Test
+  public void testConvertDateToUTCIgnoresMilliseconds() throws Exception {
+    Date date = new Date(utc(2016, 2, 29, 12, 0).getTime() + 999);
+    assertEquals(utc(2016, 2, 29, 11, 0), DateConverter.convertDateToUTC(date, PARIS));
+    // Before epoch, milliseconds are floored too
+    date = new Date(utc(1969, 12, 31, 23, 59).getTime() + 59999);
+    assertEquals(new Date(utc(1969, 12, 31, 23, 59).getTime() + 59000), DateConverter.convertDateToUTC(date, UTC));
+  }
+
+  @Test
+  public void testOffsetShiftsMatchCalendarArithmetic() {
+    TimeZone userTimeZone = TimeZone.getTimeZone("Asia/Tokyo");
+    for (TimeZone timeZone : TIME_ZONES) {
+      for (long time = utc(2015, 1, 1, 0, 0).getTime(); time < utc(2017, 1, 1, 0, 0).getTime(); time += SAMPLING_STEP) {
+        Date date = new Date(time);
+        int offsetInMinutes = timeZone.getOffset(time) / 60000;
+        assertEquals(legacyAddMinutes(date, timeZone, offsetInMinutes), DateConverter.getExoDateFromExchangeFormat(date, timeZone));
+        assertEquals(legacyAddMinutes(date, timeZone, -offsetInMinutes), DateConverter.convertToDefaultTimeZoneFormat(date, timeZone));
+        assertEquals(legacyAddMinutes(date, timeZone, offsetInMinutes - userTimeZone.getRawOffset() / 60000),
+            DateConverter.convertToUserTimeZoneFormat(date, userTimeZone, timeZone));
+      }
+    }
+  }
+
+  @Test
+  public void testDaysMatchCalendarFields() {
+    for (TimeZone timeZone : TIME_ZONES) {
+      Date previousDate = null;
+      for (long time = utc(2015, 1, 1, 0, 0).getTime(); time < utc(2017, 1, 1, 0, 0).getTime(); time += SAMPLING_STEP) {
+        Date date = new Date(time);
+        String message = timeZone.getID() + " " + date;
+        assertEquals(message, legacyStartOfDay(date, timeZone), DateConverter.getStartOfDay(date, timeZone));
+        assertEquals(message, legacyMinuteOfDay(date, timeZone), DateConverter.getMinuteOfDay(date, timeZone));
+        if (previousDate != null) {
+          assertEquals(message, legacyIsSameDate(previousDate, date, timeZone), DateConverter.isSameDate(previousDate, date, timeZone));
+        }
+        previousDate = date;
+      }
+    }
+  }
+
+  @Test
+  public void testStartOfDaySkippedByDaylightSaving() {
+    // Midnight of 2018-11-04 is skipped in Sao Paulo, the day starts at 01:00
+    Date date = utc(2018, 11, 4, 15, 0);
+    assertEquals(utc(2018, 11, 4, 3, 0), DateConverter.getStartOfDay(date, SAO_PAULO));
+    assertEquals(legacyStartOfDay(date, SAO_PAULO), DateConverter.getStartOfDay(date, SAO_PAULO));
+  }
+
+  @Test
+  public void testLeapDays() {
+    // 2016-02-29 in New York, UTC-5
+    assertEquals(utc(2016, 2, 29, 5, 0), DateConverter.getStartOfDay(utc(2016, 2, 29, 20, 0), NEW_YORK));
+    assertEquals(utc(2016, 2, 29, 5, 0), DateConverter.getStartOfDay(utc(2016, 3, 1, 4, 59), NEW_YORK));
+    assertEquals(utc(2016, 3, 1, 5, 0), DateConverter.getStartOfDay(utc(2016, 3, 1, 5, 0), NEW_YORK));
+    assertTrue(DateConverter.isSameDate(utc(2016, 2, 29, 5, 0), utc(2016, 3, 1, 4, 59), NEW_YORK));
+    assertFalse(DateConverter.isSameDate(utc(2016, 2, 28, 23, 0), utc(2016, 2, 29, 0, 0), UTC));
+    assertFalse(DateConverter.isSameDate(utc(2016, 2, 29, 23, 0), utc(2016, 3, 1, 0, 0), UTC));
+
+    // Century years: 2000 is a leap year, 2100 isn't
+    assertEquals(utc(2000, 2, 29, 0, 0), DateConverter.getStartOfDay(utc(2000, 2, 29, 12, 0), UTC));
+    assertEquals(utc(2100, 3, 1, 0, 0), DateConverter.getStartOfDay(new Date(utc(2100, 2, 28, 0, 0).getTime() + 24 * 60 * 60 * 1000L), UTC));
+    for (Date date : new Date[] { utc(2000, 2, 29, 12, 0), utc(2012, 2, 29, 0, 30), utc(2016, 2, 29, 23, 59), utc(2100, 2, 28, 23, 59) }) {
+      for (TimeZone timeZone : TIME_ZONES) {
+        assertEquals(legacyStartOfDay(date, timeZone), DateConverter.getStartOfDay(date, timeZone));
+      }
+    }
+  }
+
+  private static Date utc(int year, int month, int day, int hour, int minute) {
+    Calendar calendar = Calendar.getInstance(UTC);
+    calendar.clear();
+    calendar.set(year, month - 1, day, hour, minute, 0);
+    return calendar.getTime();
+  }
+
+  private static Date legacyConvertDateToUTC(Date date, TimeZone timeZone) throws ParseException {
+    SimpleDateFormat format = new SimpleDateFormat("dd MMM yyyy HH:mm:ss", Locale.ENGLISH);
+    format.setTimeZone(UTC);
+    String time = format.format(date);
+    format.setTimeZone(timeZone);
+    return format.parse(time);
+  }
+
+  private static Date legacyAddMinutes(Date date, TimeZone timeZone, int minutes) {
+    Calendar calendar = Calendar.getInstance(timeZone);
+    calendar.setTime(date);
+    calendar.add(Calendar.MINUTE, minutes);
+    return calendar.getTime();
+  }
+
+  private static boolean legacyIsSameDate(Date date1, Date date2, TimeZone timeZone) {
+    Calendar calendar1 = Calendar.getInstance(timeZone);
+    calendar1.setTime(date1);
+    Calendar calendar2 = Calendar.getInstance(timeZone);
+    calendar2.setTime(date2);
+    return calendar1.get(Calendar.DATE) == calendar2.get(Calendar.DATE) && calendar1.get(Calendar.MONTH) == calendar2.get(Calendar.MONTH)
+        && calendar1.get(Calendar.YEAR) == calendar2.get(Calendar.YEAR);
+  }
+
+  private static Date legacyStartOfDay(Date date, TimeZone timeZone) {
+    Calendar calendar = Calendar.getInstance(timeZone);
+    calendar.setTime(date);
+    calendar.set(Calendar.HOUR_OF_DAY, 0);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    return calendar.getTime();
+  }
+
+  private static int legacyMinuteOfDay(Date date, TimeZone timeZone) {
+    Calendar calendar = Calendar.getInstance(timeZone);
+    calendar.setTime(date);
+    return calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+  }
+
+}
@@ -0,0 +1,159 @@
+package org.exoplatform.extension.exchange.service.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * 
+ * Checks RecurrenceIdCodec against the SimpleDateFormat it replaced, in
+ * server timezone.
+ * 
+ */
+public class RecurrenceIdCodecTest {
+
+  // Sampling step not aligned on hours, minutes nor seconds
+  private static final long SAMPLING_STEP = 37 * 60 * 1000L + 1234L;
+
+  @Test
+  public void testFormatMatchesSimpleDateFormat() {
+    SimpleDateFormat format = newRecurrenceIdFormat();
+    for (long time = utc(2015, 1, 1).getTime(); time < utc(2017, 1, 1).getTime(); time += SAMPLING_STEP) {
+      Date date = new Date(time);
+      assertEquals(format.format(date), RecurrenceIdCodec.format(date));
+    }
+    for (Date date : new Date[] { utc(1600, 2, 29), utc(1969, 12, 31), new Date(-1L), new Date(0L), utc(2000, 2, 29), utc(2100, 2, 28), utc(2100, 3, 1), utc(9999, 12, 31) }) {
+      assertEquals(format.format(date), RecurrenceIdCodec.format(date));
+    }
+  }
+
+  @Test
+  public void testParseMatchesSimpleDateFormat() throws Exception {
+    SimpleDateFormat format = newRecurrenceIdFormat();
+    for (long time = utc(2015, 1, 1).getTime(); time < utc(2017, 1, 1).getTime(); time += SAMPLING_STEP) {
+      String recurrenceId = format.format(new Date(time));
+      assertEquals(recurrenceId, format.parse(recurrenceId), RecurrenceIdCodec.parse(recurrenceId));
+    }
+    // Days out of the month roll over like lenient formats
+    for (String recurrenceId : new String[] { "20000229T000000Z", "21000229T120000Z", "20150230T120000Z", "20151231T235959Z", "19691231T235959Z" }) {
+      assertEquals(recurrenceId, format.parse(recurrenceId), RecurrenceIdCodec.parse(recurrenceId));
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    for (long time = utc(2015, 1, 1).getTime(); time < utc(2017, 1, 1).getTime(); time += SAMPLING_STEP) {
+      Date date = new Date(time);
+      String recurrenceId = RecurrenceIdCodec.format(date);
+      // Local times repeated by daylight saving transitions are parsed once
+      assertEquals(recurrenceId, RecurrenceIdCodec.format(RecurrenceIdCodec.parse(recurrenceId)));
+      if (!isInDaylightSavingOverlap(time)) {
+        assertEquals(recurrenceId, new Date(time - time % 1000), RecurrenceIdCodec.parse(recurrenceId));
+      }
+    }
+  }
+
+  @Test
+  public void testParseRejectsInvalidRecurrenceIds() {
+    for (String recurrenceId : new String[] { "", "20150101T000000", "20150101 000000Z", "2015010T1000000Z", "20151301T000000Z", "20150100T000000Z", "20150101T240000Z",
+        "20150101T006000Z", "2015-101T000000Z" }) {
+      try {
+        RecurrenceIdCodec.parse(recurrenceId);
+        fail("Recurrence id should be rejected: " + recurrenceId);
+      } catch (ParseException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testFormatCacheCollisions() {
+    Date date = utc(2015, 6, 1);
+    long time = date.getTime();
+    int index = RecurrenceIdCodec.getCacheIndex(Long.valueOf(time).hashCode());
+    long collidingTime = time + 1000;
+    while (RecurrenceIdCodec.getCacheIndex(Long.valueOf(collidingTime).hashCode()) != index) {
+      collidingTime += 1000;
+    }
+    Date collidingDate = new Date(collidingTime);
+
+    SimpleDateFormat format = newRecurrenceIdFormat();
+    for (int i = 0; i < 3; i++) {
+      assertEquals(format.format(date), RecurrenceIdCodec.format(date));
+      assertEquals(format.format(collidingDate), RecurrenceIdCodec.format(collidingDate));
+      // Milliseconds are ignored, the cached id of the second is used
+      assertEquals(format.format(date), RecurrenceIdCodec.format(new Date(time + 999)));
+    }
+  }
+
+  @Test
+  public void testParseCacheCollisions() throws Exception {
+    SimpleDateFormat format = newRecurrenceIdFormat();
+    String recurrenceId = "20150601T100000Z";
+    int index = RecurrenceIdCodec.getCacheIndex(recurrenceId.hashCode());
+    String collidingRecurrenceId = null;
+    for (long time = format.parse(recurrenceId).getTime() + 1000; collidingRecurrenceId == null; time += 1000) {
+      String candidate = format.format(new Date(time));
+      if (RecurrenceIdCodec.getCacheIndex(candidate.hashCode()) == index) {
+        collidingRecurrenceId = candidate;
+      }
+    }
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(format.parse(recurrenceId), RecurrenceIdCodec.parse(recurrenceId));
+      assertEquals(format.parse(collidingRecurrenceId), RecurrenceIdCodec.parse(collidingRecurrenceId));
+    }
+  }
+
+  @Test
+  public void testParsedDatesAreNotShared() throws Exception {
+    Date date = RecurrenceIdCodec.parse("20150601T100000Z");
+    Date cachedDate = RecurrenceIdCodec.parse("20150601T100000Z");
+    assertNotSame(date, cachedDate);
+    long time = cachedDate.getTime();
+    date.setTime(0);
+    assertEquals(time, RecurrenceIdCodec.parse("20150601T100000Z").getTime());
+  }
+
+  @Test
+  public void testCacheIndexIsInCacheBounds() {
+    for (int hash : new int[] { 0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 0x12345678, 0xFFFF0000 }) {
+      int index = RecurrenceIdCodec.getCacheIndex(hash);
+      assertEquals(index, index & (RecurrenceIdCodec.CACHE_SIZE - 1));
+    }
+  }
+
+  private static SimpleDateFormat newRecurrenceIdFormat() {
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+    format.setTimeZone(TimeZone.getDefault());
+    return format;
+  }
+
+  private static boolean isInDaylightSavingOverlap(long time) {
+    TimeZone timeZone = TimeZone.getDefault();
+    long localTime = time + timeZone.getOffset(time);
+    // Another instant having the same local time within a day
+    for (long other = time - 24 * 60 * 60 * 1000L; other <= time + 24 * 60 * 60 * 1000L; other += 15 * 60 * 1000L) {
+      if (Math.abs(other - time) >= 1000 && other + timeZone.getOffset(other) == localTime) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Date utc(int year, int month, int day) {
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    calendar.clear();
+    calendar.set(year, month - 1, day);
+    return calendar.getTime();
+  }
+
+}